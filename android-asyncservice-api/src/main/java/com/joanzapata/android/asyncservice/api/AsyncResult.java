@@ -0,0 +1,161 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api;
+
+import com.joanzapata.android.asyncservice.api.internal.BackgroundExecutor;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of a call to a service method, which completes once the method has run.
+ * <p/>
+ * A service method returns <code>AsyncResult.of(value)</code>. The caller immediately gets
+ * a pending AsyncResult instead, which it can wait for, or cancel to cancel the call.
+ * The result is still sent as a message too. For example:
+ * <pre>
+ * &#64;AsyncService
+ * public class UserService {
+ *     public AsyncResult&lt;User&gt; getUser(String id) {
+ *         return AsyncResult.of(api.getUser(id));
+ *     }
+ * }
+ *
+ * AsyncResult&lt;User&gt; a = userService.getUser("a");
+ * AsyncResult&lt;User&gt; b = userService.getUser("b");
+ * User userA = a.get(), userB = b.get();
+ * </pre>
+ */
+public final class AsyncResult<T> implements Future<T> {
+
+    private static final int PENDING = 0, SUCCEEDED = 1, FAILED = 2, CANCELLED = 3;
+
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile T value;
+
+    private volatile Throwable error;
+
+    private volatile BackgroundExecutor.Task task;
+
+    /** Creates a pending result, used by the generated code. */
+    public AsyncResult() {
+    }
+
+    /** Creates a result which has already succeeded with the given value. */
+    public static <T> AsyncResult<T> of(T value) {
+        AsyncResult<T> result = new AsyncResult<T>();
+        result.set(value);
+        return result;
+    }
+
+    /** Creates a result which has already failed with the given error. */
+    public static <T> AsyncResult<T> failed(Throwable error) {
+        AsyncResult<T> result = new AsyncResult<T>();
+        result.fail(error);
+        return result;
+    }
+
+    /**
+     * Succeed with the given value, if still pending.
+     * @return true if the result has been completed by this call
+     */
+    public boolean set(T value) {
+        if (!state.compareAndSet(PENDING, SUCCEEDED)) return false;
+        this.value = value;
+        done.countDown();
+        return true;
+    }
+
+    /**
+     * Fail with the given error, if still pending.
+     * @return true if the result has been completed by this call
+     */
+    public boolean fail(Throwable error) {
+        if (!state.compareAndSet(PENDING, FAILED)) return false;
+        this.error = error;
+        done.countDown();
+        return true;
+    }
+
+    /** Bind the task of the call, so that cancelling this result cancels it. Used by the generated code. */
+    public void setTask(BackgroundExecutor.Task task) {
+        this.task = task;
+        if (isCancelled()) BackgroundExecutor.cancel(task, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!state.compareAndSet(PENDING, CANCELLED)) return false;
+        done.countDown();
+        BackgroundExecutor.Task task = this.task;
+        if (task != null) BackgroundExecutor.cancel(task, mayInterruptIfRunning);
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return state.get() != PENDING;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getDone();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) throw new TimeoutException();
+        return getDone();
+    }
+
+    /**
+     * Wait for the value, and throw the error of the call as is if it failed.
+     * @throws CancellationException if the call has been cancelled
+     */
+    public T join() throws Exception {
+        done.await();
+        if (state.get() != FAILED) return getDone();
+        if (error instanceof Exception) throw (Exception) error;
+        if (error instanceof Error) throw (Error) error;
+        throw new ExecutionException(error);
+    }
+
+    private T getDone() throws ExecutionException {
+        switch (state.get()) {
+            case FAILED:
+                throw new ExecutionException(error);
+            case CANCELLED:
+                throw new CancellationException();
+            default:
+                return value;
+        }
+    }
+
+}
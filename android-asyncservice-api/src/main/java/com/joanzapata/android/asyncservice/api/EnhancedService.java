@@ -26,6 +26,14 @@ public interface EnhancedService {
      */
     void send(Object message);
 
+    /**
+     * Open a stream to send many messages to the current caller, in chunks.
+     * Sending pauses while the main thread is late delivering the previous chunks,
+     * unless it is the main thread which sends.
+     * @param chunkSize The number of messages dispatched together.
+     */
+    <T> MessageStream<T> stream(int chunkSize);
+
     /**
      * Cache an object at the given key. (override previous value if any)
      * @param key    The key at which you want to store the object.
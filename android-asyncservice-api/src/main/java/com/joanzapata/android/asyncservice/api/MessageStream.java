@@ -0,0 +1,110 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api;
+
+import com.joanzapata.android.asyncservice.api.internal.AsyncService;
+import com.joanzapata.android.asyncservice.api.internal.MainThreadQueue;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sends many messages to the caller of a service, in chunks.
+ * <p/>
+ * The messages of a chunk are dispatched together, one after the other. At most
+ * <code>maxPendingChunks</code> chunks can wait for the main thread: beyond that,
+ * {@link #send(Object)} blocks until the main thread has caught up, so that a fast
+ * producer can't flood it. On the main thread itself, it never blocks.
+ * <pre>
+ * MessageStream&lt;Row&gt; stream = stream(100);
+ * for (Row row : database.rows()) stream.send(row);
+ * stream.close();
+ * </pre>
+ * A stream is used by a single thread.
+ */
+public final class MessageStream<T> {
+
+    /** Default number of chunks which can wait for the main thread. */
+    public static final int DEFAULT_MAX_PENDING_CHUNKS = 2;
+
+    private final WeakReference<Object> emitter;
+
+    private final int chunkSize;
+
+    private final Semaphore pendingChunks;
+
+    private final Runnable release = new Runnable() {
+        @Override
+        public void run() {
+            pendingChunks.release();
+        }
+    };
+
+    private List<Message> chunk;
+
+    public MessageStream(Object emitter, int chunkSize) {
+        this(emitter, chunkSize, DEFAULT_MAX_PENDING_CHUNKS);
+    }
+
+    public MessageStream(Object emitter, int chunkSize, int maxPendingChunks) {
+        if (chunkSize < 1) throw new IllegalArgumentException("The chunk size should be at least 1.");
+        if (maxPendingChunks < 1) throw new IllegalArgumentException("At least one pending chunk is needed.");
+        this.emitter = new WeakReference<Object>(emitter);
+        this.chunkSize = chunkSize;
+        this.pendingChunks = new Semaphore(maxPendingChunks);
+        this.chunk = new ArrayList<Message>(chunkSize);
+    }
+
+    /**
+     * Send a message. It is dispatched with the next chunk, once full.
+     * @throws InterruptedException if interrupted while waiting for the main thread
+     */
+    public void send(T payload) throws InterruptedException {
+        Message message = new Message(payload);
+        message.setEmitter(emitter.get());
+        chunk.add(message);
+        if (chunk.size() >= chunkSize) flush();
+    }
+
+    /**
+     * Dispatch the messages sent so far, waiting for the main thread if too many chunks are pending.
+     * @throws InterruptedException if interrupted while waiting for the main thread
+     */
+    public void flush() throws InterruptedException {
+        if (chunk.isEmpty()) return;
+
+        /* the main thread would wait for itself forever */
+        boolean flowControl = !MainThreadQueue.isMainThread();
+        if (flowControl) pendingChunks.acquire();
+        List<Message> messages = chunk;
+        chunk = new ArrayList<Message>(chunkSize);
+        AsyncService.dispatchAll(messages);
+
+        /* the main thread runs this once it has run what the injectors posted for this chunk */
+        if (flowControl) MainThreadQueue.post(release);
+    }
+
+    /**
+     * Dispatch the remaining messages.
+     * @throws InterruptedException if interrupted while waiting for the main thread
+     */
+    public void close() throws InterruptedException {
+        flush();
+    }
+
+}
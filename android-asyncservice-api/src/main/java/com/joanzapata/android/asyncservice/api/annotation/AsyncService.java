@@ -32,4 +32,15 @@ public @interface AsyncService {
      */
     Class<? extends ErrorMapper> errorMapper() default ErrorMapper.DefaultErrorMapper.class;
 
+    /**
+     * Defines how methods which are not annotated with @Serial are executed.
+     * Use SERIAL to run them one at a time on the default serial, PARALLEL
+     * to run them concurrently on the background thread pool.
+     */
+    Mode mode() default Mode.PARALLEL;
+
+    static enum Mode {
+        PARALLEL, SERIAL
+    }
+
 }
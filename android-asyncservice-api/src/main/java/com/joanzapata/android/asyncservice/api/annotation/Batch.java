@@ -0,0 +1,48 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Collects the calls of a method with a single parameter during a short window,
+ * then runs the <code>target</code> bulk method once with the list of their arguments.
+ * <p/>
+ * The target method takes a <code>List</code> of arguments and returns a
+ * <code>List</code> of results, in the same order. Each result is then sent
+ * to the emitter of the corresponding call, as if it was returned by the
+ * annotated method. The body of the annotated method is never called.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface Batch {
+
+    /**
+     * Name of the bulk method, in the same service. It is not asynchronous
+     * itself: it is only meant to be called by the batch.
+     */
+    String target();
+
+    /** Time to wait for other calls after the first one, in milliseconds. */
+    int windowMs() default 50;
+
+    /** The batch runs as soon as it holds this number of calls. */
+    int maxSize() default 50;
+
+}
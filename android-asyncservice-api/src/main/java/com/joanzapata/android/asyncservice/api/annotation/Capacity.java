@@ -0,0 +1,65 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Bounds the number of calls which have not started yet. On a service, it
+ * bounds the calls of all its methods. On a method, it bounds the calls
+ * of the method on its serial, and replaces the capacity of the service.
+ * <p/>
+ * Serials are global, so methods which share a serial share its capacity:
+ * the first one to be called defines it.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Capacity {
+
+    /** Maximum number of calls waiting to start. */
+    int value();
+
+    /** What to do with a new call when the capacity is reached. */
+    Overflow overflow() default Overflow.REJECT;
+
+    /** Message sent to the caller of a rejected call, must have a public no-arg constructor. */
+    Class<?> send() default NoMessage.class;
+
+    enum Overflow {
+
+        /** Don't run the new call, and send the <code>send</code> message if any. */
+        REJECT,
+
+        /** Cancel the oldest call which has not started yet, then accept the new call. */
+        DROP_OLDEST,
+
+        /** Silently don't run the new call. */
+        DROP_NEWEST,
+
+        /**
+         * Don't run a new call with the same arguments as a waiting one made by the same caller,
+         * even below the capacity. Reject the new call when the capacity is reached.
+         */
+        COALESCE
+    }
+
+    /** This is the default value for send(), do not use it. */
+    static final class NoMessage {}
+
+}
@@ -30,6 +30,9 @@ public @interface OnMessage {
 
     Priority priority() default Priority.FIRST;
 
+    /** The thread the method is called on. */
+    ThreadMode thread() default ThreadMode.MAIN;
+
     /** This is the default value for event(), do not use it. */
     static final class UseParameterType {}
 
@@ -40,4 +43,16 @@ public @interface OnMessage {
     static enum Priority {
         FIRST, LAST
     }
+
+    static enum ThreadMode {
+
+        /** On the main thread, directly if the message is sent from the main thread and no delivery is pending. */
+        MAIN,
+
+        /** Directly on the thread which sends the message. */
+        POSTING,
+
+        /** On a background thread, directly if the message is sent from a background thread. */
+        BACKGROUND
+    }
 }
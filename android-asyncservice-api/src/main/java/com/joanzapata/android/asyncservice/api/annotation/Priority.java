@@ -0,0 +1,44 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Defines the priority of a background method, or of all background
+ * methods of a service. Among the tasks waiting for a thread, the ones
+ * with higher priority run first. Waiting tasks gain priority over time
+ * so that low priority tasks are delayed, but never starved.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Priority {
+
+    /** For background work like prefetching or synchronization. */
+    int LOW = 0;
+
+    /** Default priority of all tasks. */
+    int NORMAL = 5;
+
+    /** For work the user is waiting for. */
+    int HIGH = 10;
+
+    int value();
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Limits the rate of the calls of a method, or of all methods of a service.
+ * Up to <code>permits</code> calls start right away, then one every
+ * <code>perMillis / permits</code> milliseconds: the calls over the limit
+ * are delayed, without holding a thread.
+ * <p/>
+ * On a service, @Ui, @Debounce and @Throttle methods are not limited.
+ * <p/>
+ * The counters of a limit are read with <code>RateLimiter.get(name)</code>, the name being
+ * the qualified name of the service, followed by <code>#</code> and the method signature
+ * for a limit on a method, such as <code>com.example.UserService#getUser(java.lang.String)</code>.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface RateLimit {
+
+    int permits();
+
+    int perMillis() default 1000;
+
+    /** Calls which would wait longer than this are rejected, in milliseconds. -1 means no limit. */
+    int maxWaitMs() default -1;
+
+    /** Message sent to the caller when a call is rejected, must have a public no-arg constructor. */
+    Class<?> send() default NoMessage.class;
+
+    /** This is the default value for send(), do not use it. */
+    static final class NoMessage {}
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Runs the method again if it throws one of the given exceptions, after an
+ * exponentially growing delay. The thread is released between attempts, but
+ * not the serial: the next calls on the same serial wait for the last attempt.
+ * <p/>
+ * Error management only applies to the error of the last attempt.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface Retry {
+
+    /** Maximum number of retries after the first attempt. */
+    int max() default 3;
+
+    /** Delay before the first retry, in milliseconds. */
+    int initialDelayMs() default 1000;
+
+    /** Each retry waits <code>multiplier</code> times longer than the previous one. */
+    double multiplier() default 2;
+
+    /** Randomly adds or removes up to this fraction of each delay, so that clients don't retry all at once. */
+    double jitter() default 0.1;
+
+    /** Exceptions which trigger a retry, subclasses included. */
+    Class<? extends Throwable>[] on() default Exception.class;
+
+}
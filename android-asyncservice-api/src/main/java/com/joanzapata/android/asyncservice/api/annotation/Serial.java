@@ -24,6 +24,17 @@ import java.lang.annotation.Target;
 @Target(ElementType.METHOD)
 public @interface Serial {
 
-    String value();
+    /** The serial shared by all methods of @AsyncService(mode = SERIAL) services. */
+    String DEFAULT = "__SERIAL_DEFAULT";
+
+    String value() default DEFAULT;
+
+    /**
+     * Maximum number of tasks of this serial running at the same time,
+     * the others wait in FIFO order. Methods using the same serial can't
+     * declare different values. The first call which declares one defines
+     * it, until then tasks of the serial run one at a time.
+     */
+    int concurrency() default 1;
 
 }
\ No newline at end of file
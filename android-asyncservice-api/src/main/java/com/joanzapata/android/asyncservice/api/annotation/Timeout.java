@@ -0,0 +1,40 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Interrupts the method if it runs for more than the given time, in milliseconds.
+ * The next calls on the same serial then start without waiting for it, and its
+ * result, if it ever returns, is ignored.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface Timeout {
+
+    int value();
+
+    /** Message sent to the caller on timeout, must have a public no-arg constructor. */
+    Class<?> send() default NoMessage.class;
+
+    /** This is the default value for send(), do not use it. */
+    static final class NoMessage {}
+
+}
@@ -19,15 +19,45 @@ import android.content.Context;
 import com.joanzapata.android.asyncservice.api.Message;
 import com.joanzapata.android.asyncservice.api.annotation.OnMessage;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.joanzapata.android.asyncservice.api.annotation.OnMessage.Priority.*;
 
 @SuppressWarnings("unchecked")
 public final class AsyncService {
 
-    static final List<Injector> injectors = new ArrayList<Injector>();
+    /** Live injectors, replaced on each change so that dispatch never waits. */
+    static final AtomicReference<InjectorRegistry> injectors = new AtomicReference<InjectorRegistry>(InjectorRegistry.EMPTY);
+
+    /** Injectors listed by the registered indexes, see {@link #addInjectorIndex(InjectorIndex)}. */
+    private static final Map<Class<?>, Injector<?>> indexedInjectors = new ConcurrentHashMap<Class<?>, Injector<?>>();
+
+    /** Injector of each injectable class, used as a factory, or NO_INJECTOR. */
+    private static final Map<Class<?>, Injector<?>> injectorsByClass = new ConcurrentHashMap<Class<?>, Injector<?>>();
+
+    private static final Injector<?> NO_INJECTOR = new Injector<Object>() {
+        @Override
+        protected void inject(Object injectable) {
+        }
+
+        @Override
+        protected Injector<Object> newInjector() {
+            return this;
+        }
+
+        @Override
+        protected Class<?>[] getMessageTypes() {
+            return new Class<?>[0];
+        }
+
+        @Override
+        protected void dispatch(Object target, Message event, OnMessage.Priority priority) {
+        }
+    };
 
     public static Context context;
 
@@ -41,39 +71,61 @@ public final class AsyncService {
         // Extract context from given object if possible
         extractContextFromObject(object);
 
-        // Try to find an injector for the supplied object class (or superclasses)
-        Class<? extends Injector> injectorClass = null;
-        Class currentClass = object.getClass();
-        while (currentClass != null && (injectorClass = findInjectorFor(currentClass)) == null) {
-            currentClass = currentClass.getSuperclass();
-        }
-
-        // If none, do nothing
-        if (currentClass == null) return;
+        // Find the injector for the supplied object class (or superclasses), if none do nothing
+        Injector injector = findInjectorFor(object.getClass());
+        if (injector == NO_INJECTOR) return;
 
         // If an injector is found, use it
-        try {
-            Injector newInjector = injectorClass.newInstance();
-            newInjector.setTarget(object);
-            injectors.add(newInjector);
-        } catch (Exception e) {
-            throw new IllegalStateException("All injectorClasses should have a public no-arg constructor", e);
-        }
+        Injector newInjector = injector.newInjector();
+        newInjector.setTarget(object);
+        InjectorRegistry registry;
+        do {
+            registry = injectors.get();
+        } while (!injectors.compareAndSet(registry, registry.with(newInjector)));
     }
 
     /**
      * Prevent the given object to receive any
      * more message in its @OnMessage methods,
-     * unless inject() is called again.
+     * unless inject() is called again. The tasks
+     * it started and which didn't start yet are
+     * cancelled.
      */
     public static void unregister(Object object) {
-        Injector injectorToRemove = null;
-        for (Injector injector : injectors)
-            if (injector.getTarget() == object)
-                injectorToRemove = injector;
+        unregister(object, false);
+    }
+
+    /**
+     * Same as {@link #unregister(Object)}.
+     * @param mayInterruptIfRunning true if the tasks started by the given
+     *                              object should also be interrupted if running.
+     */
+    public static void unregister(Object object, boolean mayInterruptIfRunning) {
+        removeInjectors(object);
+
+        BackgroundExecutor.cancelAllFrom(object, mayInterruptIfRunning);
+    }
 
-        if (injectorToRemove != null)
-            injectors.remove(injectorToRemove);
+    /**
+     * Register the generated index of a module, <code>GeneratedInjectorIndex</code> in the
+     * package its injectable classes share, so that its injectors are found without reflection.
+     * Call it before the first inject(), for example in Application.onCreate(). The injectors
+     * of the modules whose index isn't registered are looked up by name.
+     */
+    public static void addInjectorIndex(InjectorIndex index) {
+        Map<Class<?>, Injector<?>> indexed = new HashMap<Class<?>, Injector<?>>();
+        try {
+            index.registerInjectors(indexed);
+        } catch (LinkageError e) {
+            // An injector is missing, most likely removed by ProGuard, the injectors of this index are looked up by name
+            return;
+        }
+        synchronized (AsyncService.class) {
+            indexedInjectors.putAll(indexed);
+
+            // Classes already looked up may have an injector in this index
+            injectorsByClass.clear();
+        }
     }
 
     /**
@@ -87,14 +139,36 @@ public final class AsyncService {
     }
 
     /**
-     * Use class name to find a generated injector for the user class.
-     * TODO This will cause problem with proguard, find better approach. (generated mapper ?)
+     * Find the injector of the given class or of its closest superclass,
+     * or NO_INJECTOR. The result is cached.
+     */
+    private static Injector<?> findInjectorFor(Class<?> objectClass) {
+        Injector<?> injector = injectorsByClass.get(objectClass);
+        if (injector != null) return injector;
+
+        // At each level, look in the indexes first, then by name for the injectors which are not in an index
+        Class<?> currentClass = objectClass;
+        while (injector == null && currentClass != null) {
+            injector = indexedInjectors.get(currentClass);
+            if (injector == null) injector = findGeneratedInjectorFor(currentClass);
+            currentClass = currentClass.getSuperclass();
+        }
+        if (injector == null) injector = NO_INJECTOR;
+        injectorsByClass.put(objectClass, injector);
+        return injector;
+    }
+
+    /**
+     * Use class name to find a generated injector which is not
+     * in the index, like those compiled with a library.
      */
-    private static Class<? extends Injector> findInjectorFor(Class currentClass) {
+    private static Injector<?> findGeneratedInjectorFor(Class<?> currentClass) {
         try {
-            return (Class<? extends Injector>) Class.forName(currentClass.getCanonicalName() + "Injector");
+            return (Injector<?>) Class.forName(currentClass.getCanonicalName() + "Injector").newInstance();
         } catch (ClassNotFoundException e) {
             return null;
+        } catch (Exception e) {
+            throw new IllegalStateException("All injectorClasses should have a public no-arg constructor", e);
         }
     }
 
@@ -108,24 +182,52 @@ public final class AsyncService {
         dispatch(internalMessage);
     }
 
+    /** Dispatch several messages, in order. */
+    public static void dispatchAll(List<Message> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            dispatch(messages.get(i), FIRST);
+            dispatch(messages.get(i), LAST);
+        }
+
+        // Targets may have been collected, don't run their waiting tasks
+        BackgroundExecutor.cancelCollectedEmitters();
+    }
+
     /** Dispatch an event, application wide. */
     public static void dispatch(Message message) {
         dispatch(message, FIRST);
         dispatch(message, LAST);
+
+        // Targets may have been collected, don't run their waiting tasks
+        BackgroundExecutor.cancelCollectedEmitters();
     }
 
     private static void dispatch(Message message, OnMessage.Priority priority) {
-        // Loop through injectors
-        for (int i = 0; i < injectors.size(); i++) {
-            Injector injector = injectors.get(i);
+        Object payload = message.getPayload();
+        if (payload == null) return;
 
-            // Dispatch event to it
-            boolean isValid = injector.dispatch(message, priority);
+        // Only loop through the injectors which can receive this type of message, in order of registration
+        boolean hasCollectedTargets = false;
+        for (Injector injector : injectors.get().injectorsFor(payload.getClass())) {
 
-            // Removed it from the list if the injector target is no more valid
-            if (!isValid) injectors.remove(i--);
+            // Dispatch event to it, false if the injector target is no more valid
+            if (!injector.dispatch(message, priority)) hasCollectedTargets = true;
         }
 
+        // Remove the injectors whose target has been collected
+        if (hasCollectedTargets) removeInjectors(null);
+    }
+
+    /**
+     * Remove the injectors of the given target, and those whose target has been collected.
+     * Concurrent changes are retried rather than waited for, dispatchers are never blocked.
+     */
+    private static void removeInjectors(Object target) {
+        InjectorRegistry registry, newRegistry;
+        do {
+            registry = injectors.get();
+            newRegistry = registry.without(target);
+        } while (newRegistry != registry && !injectors.compareAndSet(registry, newRegistry));
     }
 
 }
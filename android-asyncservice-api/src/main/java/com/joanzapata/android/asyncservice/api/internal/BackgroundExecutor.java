@@ -15,53 +15,97 @@
  */
 package com.joanzapata.android.asyncservice.api.internal;
 
+import com.joanzapata.android.asyncservice.api.annotation.Priority;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BackgroundExecutor {
 
-    public static Executor DEFAULT_EXECUTOR = Executors.newScheduledThreadPool(2 * Runtime.getRuntime().availableProcessors());
+    /**
+     * Runs tasks on the default executor, which is only created on first use.
+     * @deprecated use {@link #getDefaultExecutor()}, or <code>setExecutor(null)</code> to restore it
+     */
+    @Deprecated
+    public static final Executor DEFAULT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            getDefaultExecutor().execute(runnable);
+        }
+    };
+
+    /** The executor set with setExecutor(), null for the default one. */
+    private static volatile Executor executor;
+
+    /** The executors set with setExecutor(Pool, Executor), null for the default ones. */
+    private static volatile Executor ioExecutor;
+
+    private static volatile Executor computeExecutor;
+
+    /** Whether the default executors share their threads fairly between emitters. */
+    private static volatile boolean fair;
+
+    /** The thread pools tasks can run on, see {@link Task#pool(Pool)}. */
+    public enum Pool {
+
+        /** Up to twice as many threads as processors. */
+        DEFAULT,
+
+        /** Many threads, for tasks which mostly wait for the network or the disk. */
+        IO,
+
+        /** One thread per processor, for CPU-heavy tasks. */
+        COMPUTE
+    }
+
+    /** Hands delayed tasks over to the executor when their delay has elapsed, and fires timeouts. */
+    static final HashedWheelTimer timer = new HashedWheelTimer("BackgroundExecutor-timer", 10, 512);
 
-    private static Executor executor = DEFAULT_EXECUTOR;
+    /** Serial queues by serial, each one is guarded by its own monitor. */
+    private static final ConcurrentMap<String, SerialQueue> serials = new ConcurrentHashMap<String, SerialQueue>();
 
-    private static final List<Task> tasks = new ArrayList<Task>();
+    /** Tasks by cancellation id, each list is guarded by lock(id.hashCode()). */
+    private static final ConcurrentMap<String, List<Task>> tasksById = new ConcurrentHashMap<String, List<Task>>();
+
+    /** Tasks by emitter, each list is guarded by lock(key.hash). */
+    private static final ConcurrentMap<EmitterKey, List<Task>> tasksByEmitter = new ConcurrentHashMap<EmitterKey, List<Task>>();
+
+    /** Keys of the emitters which have been garbage collected. */
+    private static final ReferenceQueue<Object> collectedEmitters = new ReferenceQueue<Object>();
+
+    /** Striped locks for the indexes, so that unrelated ids and emitters don't contend. */
+    private static final Object[] locks = new Object[32];
+
+    static {
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
 
     /**
-     * Execute a runnable after the given delay.
+     * Execute a runnable now.
      * @param runnable the task to execute
-     * @param delay    the time from now to delay execution, in milliseconds
      * @return Future associated to the running task
-     * @throws IllegalArgumentException if <code>delay</code> is strictly positive and the current
-     *                                  executor does not support scheduling (if
-     *                                  {@link #setExecutor(Executor)} has been called with such an
-     *                                  executor)
      */
-    private static Future<?> directExecute(Runnable runnable, int delay) {
-        Future<?> future = null;
-        if (delay > 0) {
-            /* no serial, but a delay: schedule the task */
-            if (!(executor instanceof ScheduledExecutorService)) {
-                throw new IllegalArgumentException("The executor set does not support scheduling");
-            }
-            ScheduledExecutorService scheduledExecutorService = (ScheduledExecutorService) executor;
-            future = scheduledExecutorService.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+    private static Future<?> directExecute(Runnable runnable) {
+        Executor executor = executor(runnable instanceof Task ? ((Task) runnable).pool : Pool.DEFAULT);
+        if (executor instanceof ExecutorService) {
+            ExecutorService executorService = (ExecutorService) executor;
+            return executorService.submit(runnable);
         } else {
-            if (executor instanceof ExecutorService) {
-                ExecutorService executorService = (ExecutorService) executor;
-                future = executorService.submit(runnable);
-            } else {
-                /* non-cancellable task */
-                executor.execute(runnable);
-            }
+            /* non-cancellable task */
+            executor.execute(runnable);
+            return null;
         }
-        return future;
     }
 
     /**
@@ -69,22 +113,30 @@ public class BackgroundExecutor {
      * tasks added with the same non-null <code>serial</code> (if any) have
      * completed execution.
      * @param task the task to execute
-     * @throws IllegalArgumentException if <code>task.delay</code> is strictly positive and the
-     *                                  current executor does not support scheduling (if
-     *                                  {@link #setExecutor(Executor)} has been called with such an
-     *                                  executor)
      */
-    public static synchronized void execute(Task task) {
-        Future<?> future = null;
-        if (task.serial == null || !hasSerialRunning(task.serial)) {
-            task.executionAsked = true;
-            future = directExecute(task, task.remainingDelay);
+    public static void execute(Task task) {
+        cancelCollectedEmitters();
+
+        if (task.bound != null) {
+            Task shed = task.bound.admit(task);
+            if (shed == task) {
+                task.onRejected();
+                return;
+            }
+            if (shed != null) cancel(shed, false);
         }
-        if (task.id != null || task.serial != null) {
-            /* keep task */
-            task.future = future;
-            tasks.add(task);
+
+        if (task.serial == null) {
+            submit(task);
+        } else {
+            serialQueue(task.serial).offer(task);
         }
+
+        /*
+         * Index the task only once it has been queued or submitted,
+         * so that cancelAll() always sees its future if it has one.
+         */
+        index(task);
     }
 
     /**
@@ -94,10 +146,6 @@ public class BackgroundExecutor {
      * @param delay    the time from now to delay execution, in milliseconds
      * @param serial   the serial queue (<code>null</code> or <code>""</code> for no
      *                 serial execution)
-     * @throws IllegalArgumentException if <code>delay</code> is strictly positive and the current
-     *                                  executor does not support scheduling (if
-     *                                  {@link #setExecutor(Executor)} has been called with such an
-     *                                  executor)
      */
     public static void execute(final Runnable runnable, String id, int delay, String serial) {
         execute(new Task(id, delay, serial) {
@@ -112,13 +160,18 @@ public class BackgroundExecutor {
      * Execute a task after the given delay.
      * @param runnable the task to execute
      * @param delay    the time from now to delay execution, in milliseconds
-     * @throws IllegalArgumentException if <code>delay</code> is strictly positive and the current
-     *                                  executor does not support scheduling (if
-     *                                  {@link #setExecutor(Executor)} has been called with such an
-     *                                  executor)
      */
-    public static void execute(Runnable runnable, int delay) {
-        directExecute(runnable, delay);
+    public static void execute(final Runnable runnable, int delay) {
+        if (delay > 0) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    directExecute(runnable);
+                }
+            }, delay);
+        } else {
+            directExecute(runnable);
+        }
     }
 
     /**
@@ -126,7 +179,7 @@ public class BackgroundExecutor {
      * @param runnable the task to execute
      */
     public static void execute(Runnable runnable) {
-        directExecute(runnable, 0);
+        directExecute(runnable);
     }
 
     /**
@@ -147,14 +200,91 @@ public class BackgroundExecutor {
     /**
      * Change the executor.
      * <p/>
-     * Note that if the given executor is not a {@link ScheduledExecutorService}
-     * then executing a task after a delay will not be supported anymore. If it
-     * is not even a {@link ExecutorService} then tasks will not be cancellable
-     * anymore.
-     * @param executor the new executor
+     * Delayed tasks are handed over to the executor once their delay has
+     * elapsed. If it is not an {@link ExecutorService} then tasks which
+     * have been handed over will not be cancellable anymore. Task priorities are only honored by a {@link PriorityExecutor}.
+     * @param executor the new executor, or null for the default one
      */
+    @SuppressWarnings("deprecation")
     public static void setExecutor(Executor executor) {
-        BackgroundExecutor.executor = executor;
+        BackgroundExecutor.executor = executor == DEFAULT_EXECUTOR ? null : executor;
+    }
+
+    /**
+     * Enable or disable fair scheduling. When enabled, the waiting tasks are grouped by
+     * emitter, and the groups are served round-robin: an emitter which submits many tasks
+     * can't delay the tasks of the others by more than one task each. Tasks of the same
+     * emitter still run in the order they were submitted, and priorities only order the
+     * tasks of different emitters in the same round. Only honored by a {@link PriorityExecutor}.
+     */
+    public static void setFair(boolean fair) {
+        BackgroundExecutor.fair = fair;
+    }
+
+    public static boolean isFair() {
+        return fair;
+    }
+
+    /**
+     * Change the executor of the given pool. By default, the I/O and
+     * compute tasks run on the executor given to {@link #setExecutor(Executor)}
+     * if any, else on their own pool.
+     * @param pool     the pool to replace
+     * @param executor the new executor, or null for the default one
+     */
+    public static void setExecutor(Pool pool, Executor executor) {
+        switch (pool) {
+            case IO:
+                ioExecutor = executor;
+                break;
+            case COMPUTE:
+                computeExecutor = executor;
+                break;
+            default:
+                setExecutor(executor);
+        }
+    }
+
+    /**
+     * The default executor, a {@link PriorityExecutor} of up to twice as many threads
+     * as processors. It is created on first use, and its threads stop when idle.
+     */
+    public static PriorityExecutor getDefaultExecutor() {
+        return DefaultExecutorHolder.INSTANCE;
+    }
+
+    /**
+     * The default executor of the given pool, created on first use. Its
+     * metrics, such as the time tasks wait for a thread, show whether the pool is saturated.
+     */
+    public static PriorityExecutor getDefaultExecutor(Pool pool) {
+        switch (pool) {
+            case IO:
+                return IoExecutorHolder.INSTANCE;
+            case COMPUTE:
+                return ComputeExecutorHolder.INSTANCE;
+            default:
+                return DefaultExecutorHolder.INSTANCE;
+        }
+    }
+
+    private static Executor executor(Pool pool) {
+        Executor executor = pool == Pool.IO ? ioExecutor : pool == Pool.COMPUTE ? computeExecutor : null;
+        if (executor == null) executor = BackgroundExecutor.executor;
+        return executor != null ? executor : getDefaultExecutor(pool);
+    }
+
+    /** Lazily creates the default executor, when the class is first accessed. */
+    private static final class DefaultExecutorHolder {
+        static final PriorityExecutor INSTANCE = new PriorityExecutor(2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    private static final class IoExecutorHolder {
+        static final PriorityExecutor INSTANCE = new PriorityExecutor(Math.max(16, 4 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static final class ComputeExecutorHolder {
+        static final PriorityExecutor INSTANCE = new PriorityExecutor(Runtime.getRuntime().availableProcessors());
     }
 
     /**
@@ -164,59 +294,282 @@ public class BackgroundExecutor {
      *                              interrupted; otherwise, in-progress tasks are allowed to
      *                              complete
      */
-    public static synchronized void cancelAll(String id, boolean mayInterruptIfRunning) {
+    public static void cancelAll(String id, boolean mayInterruptIfRunning) {
+        List<Task> tasks;
+        synchronized (lock(id.hashCode())) {
+            List<Task> indexed = tasksById.get(id);
+            if (indexed == null) return;
+            tasks = new ArrayList<Task>(indexed);
+        }
+
         for (int i = tasks.size() - 1; i >= 0; i--) {
-            Task task = tasks.get(i);
-            if (id.equals(task.id)) {
-                if (task.future != null) {
-                    task.future.cancel(mayInterruptIfRunning);
-                    if (!task.managed.getAndSet(true)) {
-                        /*
-                         * the task has been submitted to the executor, but its
-						 * execution has not started yet, so that its run()
-						 * method will never call postExecute()
-						 */
-                        task.postExecute();
-                    }
-                } else if (task.executionAsked) {
-                } else {
-                    /* this task has not been submitted to the executor */
-                    tasks.remove(i);
-                }
+            cancel(tasks.get(i), mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * Cancel all tasks started by the given emitter, see {@link Task#emitter(Object)}.
+     * Waiting tasks never run, and the next tasks of their serial (if any) run as usual.
+     * @param emitter               the emitter, usually an activity or a fragment
+     * @param mayInterruptIfRunning <code>true</code> if the thread executing this task should be
+     *                              interrupted; otherwise, in-progress tasks are allowed to
+     *                              complete
+     */
+    public static void cancelAllFrom(Object emitter, boolean mayInterruptIfRunning) {
+        EmitterKey key = new EmitterKey(emitter, null);
+        List<Task> tasks;
+        synchronized (lock(key.hash)) {
+            List<Task> indexed = tasksByEmitter.get(key);
+            if (indexed == null) return;
+            tasks = new ArrayList<Task>(indexed);
+        }
+
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            cancel(tasks.get(i), mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * Cancel the waiting tasks of the emitters which have been garbage collected:
+     * nobody would receive their results. Running tasks are allowed to complete.
+     */
+    static void cancelCollectedEmitters() {
+        Reference<?> collected;
+        while ((collected = collectedEmitters.poll()) != null) {
+            EmitterKey key = (EmitterKey) collected;
+            List<Task> tasks;
+            synchronized (lock(key.hash)) {
+                /* only one of the keys of an emitter is in the index */
+                tasks = tasksByEmitter.remove(key);
+            }
+            if (tasks == null) continue;
+
+            for (int i = tasks.size() - 1; i >= 0; i--) {
+                cancel(tasks.get(i), false);
             }
         }
     }
 
     /**
-     * Indicates whether a task with the specified <code>serial</code> has been
-     * submitted to the executor.
-     * @param serial the serial queue
-     * @return <code>true</code> if such a task has been submitted,
-     * <code>false</code> otherwise
+     * Cancel the given task, if it has been given to {@link #execute(Task)}.
+     * @param task                  the task to cancel
+     * @param mayInterruptIfRunning <code>true</code> if the thread executing this task should be
+     *                              interrupted; otherwise, in-progress tasks are allowed to
+     *                              complete
      */
-    private static boolean hasSerialRunning(String serial) {
-        for (Task task : tasks) {
-            if (task.executionAsked && serial.equals(task.serial)) {
-                return true;
+    public static void cancel(Task task, boolean mayInterruptIfRunning) {
+        /* prevents a task waiting for a retry from being rescheduled */
+        task.cancelled = true;
+        if (task.bound != null) task.bound.remove(task);
+        if (task.serial != null && serialQueue(task.serial).remove(task)) {
+            /* this task has not been submitted to the executor */
+            unindex(task);
+            task.onCancelled();
+        } else if (task.future != null || task.delayTimeout != null) {
+            /* prevent the hand-over if the delay has not elapsed yet */
+            if (task.delayTimeout != null) task.delayTimeout.cancel();
+            Future<?> future = task.future;
+            if (future != null) future.cancel(mayInterruptIfRunning);
+            if (!task.managed.getAndSet(true)) {
+                /*
+                 * the task has been submitted to the executor, but its
+                 * execution has not started yet, so that its run()
+                 * method will never call postExecute()
+                 */
+                task.postExecute();
+                task.onCancelled();
+            }
+        }
+    }
+
+    /** Submit the task to the executor, once its delay has elapsed, and keep its future if any. */
+    private static void submit(final Task task) {
+        task.executionAsked = true;
+        if (task.remainingDelay > 0) {
+            task.delayTimeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    task.future = directExecute(task);
+                }
+            }, task.remainingDelay);
+        } else {
+            task.future = directExecute(task);
+        }
+    }
+
+    /** Retrieve the queue of the given serial, create it if needed. */
+    private static SerialQueue serialQueue(String serial) {
+        SerialQueue queue = serials.get(serial);
+        if (queue == null) {
+            SerialQueue newQueue = new SerialQueue();
+            queue = serials.putIfAbsent(serial, newQueue);
+            if (queue == null) queue = newQueue;
+        }
+        return queue;
+    }
+
+    private static Object lock(int hash) {
+        hash ^= hash >>> 16;
+        return locks[hash & (locks.length - 1)];
+    }
+
+    private static void index(Task task) {
+        if (task.id != null) {
+            synchronized (lock(task.id.hashCode())) {
+                /* the task may have completed before being indexed */
+                if (task.completed) return;
+                List<Task> tasks = tasksById.get(task.id);
+                if (tasks == null) {
+                    tasks = new ArrayList<Task>(2);
+                    tasksById.put(task.id, tasks);
+                }
+                tasks.add(task);
+            }
+        }
+
+        if (task.emitter != null) {
+            synchronized (lock(task.emitter.hash)) {
+                /* the emitter may have been collected already, its results would go nowhere anyway */
+                if (task.completed || task.emitter.get() == null) return;
+                List<Task> tasks = tasksByEmitter.get(task.emitter);
+                if (tasks == null) {
+                    tasks = new ArrayList<Task>(2);
+                    tasksByEmitter.put(task.emitter, tasks);
+                }
+                tasks.add(task);
+            }
+        }
+    }
+
+    private static void unindex(Task task) {
+        task.completed = true;
+
+        if (task.id != null) {
+            synchronized (lock(task.id.hashCode())) {
+                List<Task> tasks = tasksById.get(task.id);
+                if (tasks != null) {
+                    tasks.remove(task);
+                    if (tasks.isEmpty()) tasksById.remove(task.id);
+                }
+            }
+        }
+
+        if (task.emitter != null) {
+            synchronized (lock(task.emitter.hash)) {
+                /* if the emitter has been collected, its entry is removed by cancelCollectedEmitters() */
+                List<Task> tasks = tasksByEmitter.get(task.emitter);
+                if (tasks != null) {
+                    tasks.remove(task);
+                    if (tasks.isEmpty()) tasksByEmitter.remove(task.emitter);
+                }
             }
         }
-        return false;
     }
 
     /**
-     * Retrieve and remove the first task having the specified
-     * <code>serial</code> (if any).
+     * Number of tasks having the specified <code>serial</code> which
+     * have been submitted to the executor and have not completed yet.
      * @param serial the serial queue
-     * @return task if found, <code>null</code> otherwise
      */
-    private static Task take(String serial) {
-        int len = tasks.size();
-        for (int i = 0; i < len; i++) {
-            if (serial.equals(tasks.get(i).serial)) {
-                return tasks.remove(i);
+    public static int getRunningCount(String serial) {
+        SerialQueue queue = serials.get(serial);
+        return queue == null ? 0 : queue.getRunningCount();
+    }
+
+    /**
+     * Number of tasks having the specified <code>serial</code> which
+     * wait for a previous task of the same serial to complete.
+     * @param serial the serial queue
+     */
+    public static int getWaitingCount(String serial) {
+        SerialQueue queue = serials.get(serial);
+        return queue == null ? 0 : queue.getWaitingCount();
+    }
+
+    /**
+     * Tasks having the same serial. At most <code>concurrency</code> of them
+     * are submitted to the executor at a time, the others wait here in FIFO order.
+     */
+    private static final class SerialQueue {
+
+        /** Keeps insertion order, and allows constant time removal on cancellation. */
+        private final LinkedHashSet<Task> waiting = new LinkedHashSet<Task>();
+
+        private int running;
+
+        /** Set by the first task which declares one, 0 until then */
+        private int concurrency;
+
+        synchronized void offer(Task task) {
+            if (concurrency == 0) concurrency = task.concurrency;
+            waiting.add(task);
+            submitWaiting();
+        }
+
+        /**
+         * Remove the given task if it has not been submitted yet.
+         * @return true if the task has been removed, false if it has already been submitted
+         */
+        synchronized boolean remove(Task task) {
+            return !task.executionAsked && waiting.remove(task);
+        }
+
+        /** A task of this serial has completed, submit the next one(s) if any. */
+        synchronized void next() {
+            running--;
+            submitWaiting();
+        }
+
+        /** Submit waiting tasks in FIFO order, as long as the concurrency allows it. */
+        private void submitWaiting() {
+            while (running < Math.max(1, concurrency) && !waiting.isEmpty()) {
+                Task next = waiting.iterator().next();
+                waiting.remove(next);
+                if (next.remainingDelay != 0) {
+                    /* the delay may not have elapsed yet */
+                    next.remainingDelay = Math.max(0, (int) (next.targetTimeMillis - System.currentTimeMillis()));
+                }
+                running++;
+                submit(next);
             }
         }
-        return null;
+
+        synchronized int getRunningCount() {
+            return running;
+        }
+
+        synchronized int getWaitingCount() {
+            return waiting.size();
+        }
+
+    }
+
+    /**
+     * Weak reference to an emitter, equal to the other keys of the same emitter
+     * by identity. Once the emitter has been collected, a key is only equal to itself.
+     */
+    private static final class EmitterKey extends WeakReference<Object> {
+
+        private final int hash;
+
+        EmitterKey(Object emitter, ReferenceQueue<Object> queue) {
+            super(emitter, queue);
+            hash = System.identityHashCode(emitter);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof EmitterKey)) return false;
+            Object emitter = get();
+            return emitter != null && emitter == ((EmitterKey) o).get();
+        }
+
     }
 
     public static abstract class Task implements Runnable {
@@ -225,8 +578,29 @@ public class BackgroundExecutor {
         private int remainingDelay;
         private long targetTimeMillis; /* since epoch */
         private String serial;
-        private boolean executionAsked;
-        private Future<?> future;
+        private int concurrency; /* 0 if not declared */
+        private int priority = Priority.NORMAL;
+        private int timeout;
+        private volatile boolean timedOut;
+        private volatile boolean executionAsked;
+        private volatile Future<?> future;
+        private volatile HashedWheelTimer.Timeout delayTimeout;
+        private volatile HashedWheelTimer.Timeout timeoutHandle;
+        private EmitterKey emitter;
+        private TaskBound bound;
+        private Pool pool = Pool.DEFAULT;
+        private volatile boolean cancelled;
+
+        /* The key of this task in its bound, only accessed by the bound */
+        Object boundKey;
+
+        private String coalesceKey;
+
+        /* Delay before the next attempt, -1 if no retry was asked, only accessed by the running thread */
+        private int retryDelay = -1;
+
+        /* Set before the task is removed from the indexes, it then can't be indexed anymore */
+        private volatile boolean completed;
 
         /*
          * A task can be cancelled after it has been submitted to the executor
@@ -242,6 +616,12 @@ public class BackgroundExecutor {
          */
         private AtomicBoolean managed = new AtomicBoolean();
 
+        /*
+         * A task which times out releases its serial without waiting for
+         * run() to return. This flag guarantees postExecute() runs once.
+         */
+        private AtomicBoolean postExecuted = new AtomicBoolean();
+
         public Task(String id, int delay, String serial) {
             if (!"".equals(id)) {
                 this.id = id;
@@ -255,6 +635,115 @@ public class BackgroundExecutor {
             }
         }
 
+        /**
+         * Change the delay of this task, before it is executed.
+         * @param delay the time from now to delay execution, in milliseconds
+         * @return this task
+         */
+        public Task delay(int delay) {
+            remainingDelay = Math.max(0, delay);
+            targetTimeMillis = System.currentTimeMillis() + remainingDelay;
+            return this;
+        }
+
+        /**
+         * Allow up to <code>concurrency</code> tasks of this task serial
+         * to run at the same time. Has no effect if the task has no serial.
+         * The first task of a serial which declares a concurrency defines
+         * it for the serial, later values are ignored.
+         * @return this task
+         */
+        public Task concurrency(int concurrency) {
+            if (concurrency < 1) {
+                throw new IllegalArgumentException("The concurrency should be at least 1");
+            }
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * Define the priority of this task, from {@link Priority#LOW} to
+         * {@link Priority#HIGH}. Defaults to {@link Priority#NORMAL}.
+         * @return this task
+         */
+        public Task priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        int getPriority() {
+            return priority;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        /** The emitter of this task, or null if none or if it has been collected. */
+        Object getEmitter() {
+            return emitter == null ? null : emitter.get();
+        }
+
+        /** A weak key equal to the keys of the other tasks of the same emitter, or null if none. */
+        Object getEmitterKey() {
+            return emitter;
+        }
+
+        /**
+         * Run this task on the given thread pool. Defaults to {@link Pool#DEFAULT}.
+         * @return this task
+         */
+        public Task pool(Pool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Count this task in the given bound until it starts. If the bound is full,
+         * the task may not run, in which case {@link #onRejected()} is called.
+         * @return this task
+         */
+        public Task bound(TaskBound bound) {
+            this.bound = bound;
+            return this;
+        }
+
+        /**
+         * Identify the call this task runs, such as the call id of a service method. If its bound
+         * coalesces, a task isn't run while one with the same key and emitter is waiting.
+         * @return this task
+         */
+        public Task coalesceKey(String coalesceKey) {
+            this.coalesceKey = coalesceKey;
+            return this;
+        }
+
+        String getCoalesceKey() {
+            return coalesceKey;
+        }
+
+        /**
+         * Bind this task to the object which started it, so that it can be cancelled
+         * with {@link #cancelAllFrom(Object, boolean)}. Waiting tasks are also cancelled
+         * once the emitter has been garbage collected. The emitter is weakly referenced.
+         * @return this task
+         */
+        public Task emitter(Object emitter) {
+            this.emitter = emitter == null ? null : new EmitterKey(emitter, collectedEmitters);
+            return this;
+        }
+
+        /**
+         * Interrupt the task if it runs for more than the given time. The
+         * next tasks of its serial, if any, then start without waiting for it.
+         * @param timeout the maximum execution time, in milliseconds
+         * @return this task
+         */
+        public Task timeout(int timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
         @Override
         public void run() {
             if (managed.getAndSet(true)) {
@@ -262,37 +751,125 @@ public class BackgroundExecutor {
                 return;
             }
 
+            if (bound != null) bound.remove(this);
+
+            timeoutHandle = null;
+            if (timeout > 0) {
+                timeoutHandle = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timeout();
+                    }
+                }, timeout);
+            }
+
             try {
                 execute();
             } finally {
-                /* handle next tasks */
-                postExecute();
+                /* if the timeout has fired, the task has been released already */
+                boolean expired = !cancelTimeout();
+
+                int delay = retryDelay;
+                retryDelay = -1;
+                if (delay >= 0 && !expired) {
+                    /* keep the serial and the indexes, only release the thread */
+                    reschedule(delay);
+                } else {
+                    /* handle next tasks */
+                    postExecute();
+                }
             }
         }
 
+        private void reschedule(int delay) {
+            delay(delay);
+            future = null;
+            managed.set(false);
+            submit(this);
+
+            /* cancel() may have missed the new attempt */
+            if (cancelled) cancel(this, false);
+        }
+
         public abstract void execute();
 
-        private void postExecute() {
-            if (id == null && serial == null) {
-                /* nothing to do */
+        /** Called if the task has been cancelled before its execution started. */
+        protected void onCancelled() {
+        }
+
+        /** Called instead of running the task if its bound was full, see {@link #bound(TaskBound)}. */
+        protected void onRejected() {
+        }
+
+        /**
+         * Called if the task has timed out, on a thread of the executor. The
+         * task has been interrupted, but it may still be running.
+         */
+        protected void onTimeout() {
+        }
+
+        /**
+         * Run this task again after the given delay, once {@link #execute()} returns.
+         * The thread is released meanwhile, but the task keeps its place in its
+         * serial. Ignored if the task times out or is cancelled in the meantime.
+         * @param delay the time to wait before the next attempt, in milliseconds
+         */
+        protected void retry(int delay) {
+            retryDelay = Math.max(0, delay);
+        }
+
+        /** @return true if {@link #retry(int)} has been called during this execution */
+        protected boolean isRetrying() {
+            return retryDelay >= 0;
+        }
+
+        /** @return true if the task has timed out, in which case its results should be ignored */
+        protected boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * Cancel the timeout of this execution, if any, so that it can't fire once the
+         * results are sent. Call it from {@link #execute()} before sending them.
+         * @return false if the task has timed out, in which case its results should be ignored
+         */
+        protected boolean cancelTimeout() {
+            HashedWheelTimer.Timeout handle = timeoutHandle;
+            return handle == null || handle.cancel() || handle.isCancelled();
+        }
+
+        private void timeout() {
+            if (postExecuted.getAndSet(true)) {
+                /* the execution has completed in the meantime */
                 return;
             }
-            synchronized (BackgroundExecutor.class) {
-                /* execution complete */
-                tasks.remove(this);
-
-                if (serial != null) {
-                    Task next = take(serial);
-                    if (next != null) {
-                        if (next.remainingDelay != 0) {
-                            /* the delay may not have elapsed yet */
-                            next.remainingDelay = Math.max(0, (int) (targetTimeMillis - System.currentTimeMillis()));
-                        }
-                        /* a task having the same serial was queued, execute it */
-                        BackgroundExecutor.execute(next);
-                    }
+            timedOut = true;
+            if (future != null) future.cancel(true);
+            release();
+
+            /* the timer thread only hands work over, the timeout may reach user code */
+            directExecute(new Runnable() {
+                @Override
+                public void run() {
+                    onTimeout();
                 }
+            });
+        }
+
+        private void postExecute() {
+            if (postExecuted.getAndSet(true)) {
+                /* timed out and already released */
+                return;
             }
+            release();
+        }
+
+        private void release() {
+            /* execution complete */
+            unindex(this);
+
+            /* handle next tasks */
+            if (serial != null) serialQueue(serial).next();
         }
 
     }
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects calls during a window which starts with the first call, then
+ * flushes them all at once. A full batch is flushed without waiting.
+ */
+public abstract class Batcher<T> {
+
+    private final int window;
+
+    private final int maxSize;
+
+    private final Runnable flushPending = new Runnable() {
+        @Override
+        public void run() {
+            List<Call<T>> calls;
+            synchronized (Batcher.this) {
+                calls = pending;
+                pending = new ArrayList<Call<T>>();
+                windowTimeout = null;
+            }
+            if (!calls.isEmpty()) flush(calls);
+        }
+    };
+
+    /** Guarded by this */
+    private List<Call<T>> pending = new ArrayList<Call<T>>();
+
+    /** Guarded by this */
+    private HashedWheelTimer.Timeout windowTimeout;
+
+    /**
+     * @param window  Time to wait for other calls after the first one, in milliseconds.
+     * @param maxSize Number of calls after which the batch is flushed right away.
+     */
+    public Batcher(int window, int maxSize) {
+        this.window = window;
+        this.maxSize = maxSize;
+    }
+
+    public void add(T argument, String callId, Object emitter) {
+        List<Call<T>> full = null;
+        synchronized (this) {
+            pending.add(new Call<T>(argument, callId, emitter));
+            if (pending.size() >= maxSize) {
+                full = pending;
+                pending = new ArrayList<Call<T>>();
+                if (windowTimeout != null) windowTimeout.cancel();
+                windowTimeout = null;
+            } else if (windowTimeout == null) {
+                windowTimeout = BackgroundExecutor.timer.schedule(flushPending, window);
+            }
+        }
+        if (full != null) flush(full);
+    }
+
+    /**
+     * Run the given calls. Called from the timer thread or
+     * from the caller thread, so it should only submit a task.
+     */
+    protected abstract void flush(List<Call<T>> calls);
+
+    /** @return the arguments of the given calls, in the same order */
+    public static <T> List<T> arguments(List<Call<T>> calls) {
+        List<T> arguments = new ArrayList<T>(calls.size());
+        for (Call<T> call : calls)
+            arguments.add(call.argument);
+        return arguments;
+    }
+
+    public static final class Call<T> {
+
+        private final T argument;
+
+        private final String callId;
+
+        private final WeakReference<Object> emitter;
+
+        Call(T argument, String callId, Object emitter) {
+            this.argument = argument;
+            this.callId = callId;
+            this.emitter = new WeakReference<Object>(emitter);
+        }
+
+        public T getArgument() {
+            return argument;
+        }
+
+        public String getCallId() {
+            return callId;
+        }
+
+        public Object getEmitter() {
+            return emitter.get();
+        }
+
+    }
+
+}
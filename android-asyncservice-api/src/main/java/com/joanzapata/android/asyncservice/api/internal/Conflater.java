@@ -0,0 +1,53 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import com.joanzapata.android.asyncservice.api.Message;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the newest message waiting to be delivered to a @Conflate method.
+ * A delivery is posted for the first message only, and delivers the newest one.
+ */
+public final class Conflater {
+
+    private static final AtomicLong conflatedCount = new AtomicLong();
+
+    private final AtomicReference<Message> latest = new AtomicReference<Message>();
+
+    /**
+     * Replace the waiting message by the given one.
+     * @return true if no message was waiting, in which case a delivery should be posted
+     */
+    public boolean offer(Message message) {
+        if (latest.getAndSet(message) == null) return true;
+        conflatedCount.incrementAndGet();
+        return false;
+    }
+
+    /** Returns the waiting message, to be delivered. */
+    public Message take() {
+        return latest.getAndSet(null);
+    }
+
+    /** Number of messages which have been replaced by a newer one before being delivered. */
+    public static long getConflatedCount() {
+        return conflatedCount.get();
+    }
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delays tasks, and cancels the pending one each time a new
+ * task is executed, so that only the last task of a burst runs.
+ */
+public final class Debouncer {
+
+    private final int delay;
+
+    private final Scheduler scheduler;
+
+    private final AtomicReference<BackgroundExecutor.Task> pending = new AtomicReference<BackgroundExecutor.Task>();
+
+    /** @param delay Time without new task after which the last task runs, in milliseconds. */
+    public Debouncer(int delay) {
+        this(delay, Scheduler.DEFAULT);
+    }
+
+    Debouncer(int delay, Scheduler scheduler) {
+        this.delay = delay;
+        this.scheduler = scheduler;
+    }
+
+    public void execute(BackgroundExecutor.Task task) {
+        // Execute first, so that the task can be cancelled as soon as another one replaces it
+        scheduler.schedule(task, delay);
+        BackgroundExecutor.Task previous = pending.getAndSet(task);
+        if (previous != null) scheduler.cancel(previous);
+    }
+
+}
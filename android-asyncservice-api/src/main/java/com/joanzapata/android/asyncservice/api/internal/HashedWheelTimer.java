@@ -0,0 +1,264 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs short actions after a delay, from a single daemon thread.
+ * <p/>
+ * Timeouts are hashed into a circular array of buckets, one per tick, so
+ * that scheduling and cancelling are O(1) whatever the number of pending
+ * timeouts. The price is precision: a timeout fires on the first tick after
+ * its deadline, i.e. up to <code>tickMillis</code> late.
+ * <p/>
+ * The thread sleeps when there is no pending timeout, instead of ticking.
+ * Actions run on the timer thread, so they should only hand work over.
+ */
+public class HashedWheelTimer {
+
+    private static final int ST_PENDING = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final String name;
+
+    private final long tickNanos;
+
+    /* Only accessed by the timer thread */
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    /** Timeouts scheduled since the last tick, moved to the wheel by the timer thread. */
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+    /** Number of timeouts neither expired nor cancelled, the thread sleeps when 0. */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final Object idle = new Object();
+
+    private Thread thread;
+
+    /**
+     * @param name       name of the timer thread
+     * @param tickMillis precision of the timer, in milliseconds
+     * @param wheelSize  number of buckets, rounded up to a power of 2
+     */
+    public HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("The tick should be at least 1ms");
+        }
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        this.mask = size - 1;
+    }
+
+    /**
+     * Run the given action after the given delay, on the timer thread.
+     * @param action the action to run, it should return quickly
+     * @param delay  the time from now to delay the action, in milliseconds
+     * @return a handle to cancel the action
+     */
+    public Timeout schedule(Runnable action, long delay) {
+        Timeout timeout = new Timeout(this, action, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+        added.add(timeout);
+        if (pending.getAndIncrement() == 0) {
+            synchronized (idle) {
+                if (thread == null) {
+                    thread = new Thread(new Worker(), name);
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                idle.notifyAll();
+            }
+        }
+        return timeout;
+    }
+
+    /** @return the number of timeouts neither expired nor cancelled */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    private final class Worker implements Runnable {
+
+        private long startTime;
+
+        private long tick;
+
+        @Override
+        public void run() {
+            startTime = System.nanoTime();
+            while (true) {
+                if (pending.get() == 0) {
+                    synchronized (idle) {
+                        while (pending.get() == 0) {
+                            try {
+                                idle.wait();
+                            } catch (InterruptedException e) {
+                                /* the timer thread is never interrupted on purpose */
+                            }
+                        }
+                    }
+                    /* only cancelled timeouts were left in the wheel, restart it from now */
+                    for (Bucket bucket : wheel)
+                        bucket.clear();
+                    startTime = System.nanoTime();
+                    tick = 0;
+                }
+
+                waitForNextTick();
+                transferAdded();
+                expire(wheel[(int) (tick & mask)]);
+                tick++;
+            }
+        }
+
+        private void waitForNextTick() {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            while (true) {
+                long sleepMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime() + 999999);
+                if (sleepMillis <= 0) return;
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    /* the timer thread is never interrupted on purpose */
+                }
+            }
+        }
+
+        private void transferAdded() {
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                if (timeout.state.get() != ST_PENDING) continue;
+                /* a deadline already passed goes in the current bucket */
+                long ticks = Math.max(tick, (timeout.deadline - startTime) / tickNanos);
+                timeout.remainingRounds = (ticks - tick) / wheel.length;
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+
+        private void expire(Bucket bucket) {
+            Timeout timeout = bucket.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.state.get() != ST_PENDING) {
+                    bucket.remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    bucket.remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+    }
+
+    /** Handle on a scheduled action. */
+    public static final class Timeout {
+
+        private final HashedWheelTimer timer;
+
+        private final Runnable action;
+
+        private final long deadline; /* System.nanoTime() */
+
+        private final AtomicInteger state = new AtomicInteger(ST_PENDING);
+
+        /* Only accessed by the timer thread */
+        private long remainingRounds;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HashedWheelTimer timer, Runnable action, long deadline) {
+            this.timer = timer;
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevent the action from running.
+         * @return false if the action has already run, or has already been cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_PENDING, ST_CANCELLED)) return false;
+            /* it will be removed from its bucket on the next pass */
+            timer.pending.decrementAndGet();
+            return true;
+        }
+
+        /** @return true if the action has been cancelled before running */
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(ST_PENDING, ST_EXPIRED)) return;
+            timer.pending.decrementAndGet();
+            try {
+                action.run();
+            } catch (Throwable t) {
+                /* don't let a faulty action kill the timer thread */
+                Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+                if (handler != null) handler.uncaughtException(Thread.currentThread(), t);
+            }
+        }
+
+    }
+
+    /** Doubly linked list of timeouts, only accessed by the timer thread. */
+    private static final class Bucket {
+
+        private Timeout head;
+
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) head = timeout;
+            else tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) head = timeout.next;
+            else timeout.prev.next = timeout.next;
+            if (timeout.next == null) tail = timeout.prev;
+            else timeout.next.prev = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import com.joanzapata.android.asyncservice.api.Message;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of running calls of @Coalesce methods, so
+ * that identical calls can share the result of the running one.
+ */
+public final class InFlightCalls {
+
+    private static final ConcurrentMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+
+    private static final AtomicLong collapsedCount = new AtomicLong();
+
+    // Prevent instantiation
+    private InFlightCalls() {}
+
+    /**
+     * Start a call, or join the identical call already in flight.
+     * @param callId  Identifies the call, see Message#getQuery().
+     * @param emitter The object the results should be sent to.
+     * @return The call to run, or null if an identical call is already
+     * in flight, in which case the emitter will receive its results.
+     */
+    public static Call join(String callId, Object emitter) {
+        Call call = new Call(callId, emitter);
+        while (true) {
+            Call running = calls.putIfAbsent(callId, call);
+            if (running == null) return call;
+            if (running.attach(emitter)) {
+                collapsedCount.incrementAndGet();
+                return null;
+            }
+
+            // The running call was completing, it's not in the map anymore
+        }
+    }
+
+    /** Number of calls which didn't run because an identical one was in flight. */
+    public static long getCollapsedCount() {
+        return collapsedCount.get();
+    }
+
+    /** Number of calls currently in flight. */
+    public static int getInFlightCount() {
+        return calls.size();
+    }
+
+    public static final class Call {
+
+        private final String callId;
+
+        /** Guarded by this */
+        private final List<WeakReference<Object>> emitters = new ArrayList<WeakReference<Object>>(2);
+
+        /** Guarded by this */
+        private boolean closed;
+
+        Call(String callId, Object emitter) {
+            this.callId = callId;
+            emitters.add(new WeakReference<Object>(emitter));
+        }
+
+        private synchronized boolean attach(Object emitter) {
+            if (closed) return false;
+            emitters.add(new WeakReference<Object>(emitter));
+            return true;
+        }
+
+        /** Stop accepting new emitters, further identical calls will run again. */
+        public void close() {
+            calls.remove(callId, this);
+            synchronized (this) {
+                closed = true;
+            }
+        }
+
+        /**
+         * Close the call if needed, then dispatch a copy of
+         * the message to each emitter which joined the call.
+         */
+        @SuppressWarnings("unchecked")
+        public void dispatch(Message message) {
+            close();
+            for (WeakReference<Object> emitter : emitters) {
+                Message copy = new Message(message.getPayload());
+                copy.setQuery(message.getQuery());
+                if (message.isCached()) copy.cached();
+                copy.setEmitter(emitter.get());
+                AsyncService.dispatch(copy);
+            }
+        }
+
+    }
+
+}
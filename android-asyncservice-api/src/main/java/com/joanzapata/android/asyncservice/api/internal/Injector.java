@@ -25,6 +25,9 @@ public abstract class Injector<T> {
 
     protected WeakReference<T> target;
 
+    /** Order of registration, set by the registry. */
+    long sequence;
+
     void setTarget(T target) {
         this.target = new WeakReference<T>(target);
         inject(target);
@@ -49,5 +52,11 @@ public abstract class Injector<T> {
 
     protected abstract void inject(T injectable);
 
+    /** Returns a new injector of the same class. */
+    protected abstract Injector<T> newInjector();
+
+    /** The message types the @OnMessage methods of the target can receive, supertypes included. */
+    protected abstract Class<?>[] getMessageTypes();
+
     protected abstract void dispatch(T target, Message event, Priority priority);
 }
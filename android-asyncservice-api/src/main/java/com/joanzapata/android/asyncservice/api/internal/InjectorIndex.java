@@ -0,0 +1,29 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import java.util.Map;
+
+/**
+ * Lists the injectors generated for a module, so that they can be found without
+ * reflection. Each module which uses the annotations has its own generated index,
+ * to be registered with {@link AsyncService#addInjectorIndex(InjectorIndex)}.
+ */
+public interface InjectorIndex {
+
+    /** Put an injector for each injectable class in the given map, to be used as a factory. */
+    void registerInjectors(Map<Class<?>, Injector<?>> injectors);
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable snapshot of the live injectors, grouped by injector class in order of
+ * registration. Changes create a new snapshot, so that dispatchers can iterate one
+ * without locking while injectors are added and removed. Messages are dispatched
+ * in order of registration, whatever the class of the injectors.
+ */
+@SuppressWarnings("unchecked")
+final class InjectorRegistry {
+
+    static final InjectorRegistry EMPTY = new InjectorRegistry(
+            Collections.<Class<?>, Injector[]>emptyMap(),
+            Collections.<Class<?>, Class<?>[]>emptyMap(),
+            new ConcurrentHashMap<Class<?>, Class<?>[]>(), 0);
+
+    private static final Injector[] NO_INJECTORS = new Injector[0];
+
+    private static final Comparator<Injector> REGISTRATION_ORDER = new Comparator<Injector>() {
+        @Override
+        public int compare(Injector a, Injector b) {
+            return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+        }
+    };
+
+    private final Map<Class<?>, Injector[]> injectors;
+
+    /** Message types each injector class can receive. */
+    private final Map<Class<?>, Class<?>[]> messageTypes;
+
+    /**
+     * Injector classes which can receive each payload class, resolved on first dispatch.
+     * Shared by the snapshots which have the same injector classes.
+     */
+    private final ConcurrentMap<Class<?>, Class<?>[]> receivers;
+
+    /** Live injectors which can receive each payload class in order of registration, resolved on first dispatch. */
+    private final ConcurrentMap<Class<?>, Injector[]> dispatchOrder = new ConcurrentHashMap<Class<?>, Injector[]>();
+
+    /** Sequence of the next injector added. */
+    private final long nextSequence;
+
+    private InjectorRegistry(Map<Class<?>, Injector[]> injectors, Map<Class<?>, Class<?>[]> messageTypes,
+                             ConcurrentMap<Class<?>, Class<?>[]> receivers, long nextSequence) {
+        this.injectors = injectors;
+        this.messageTypes = messageTypes;
+        this.receivers = receivers;
+        this.nextSequence = nextSequence;
+    }
+
+    /** Returns the live injectors of the given class. */
+    Injector[] get(Class<?> injectorClass) {
+        Injector[] result = injectors.get(injectorClass);
+        return result == null ? NO_INJECTORS : result;
+    }
+
+    /** Returns the live injectors which can receive the given payload class, in order of registration. */
+    Injector[] injectorsFor(Class<?> payloadClass) {
+        Injector[] result = dispatchOrder.get(payloadClass);
+        if (result != null) return result;
+
+        Class<?>[] injectorClasses = receiversOf(payloadClass);
+        if (injectorClasses.length == 0) {
+            result = NO_INJECTORS;
+        } else if (injectorClasses.length == 1) {
+            result = get(injectorClasses[0]);
+        } else {
+            ArrayList<Injector> found = new ArrayList<Injector>();
+            for (Class<?> injectorClass : injectorClasses)
+                found.addAll(Arrays.asList(get(injectorClass)));
+            result = found.toArray(new Injector[found.size()]);
+            Arrays.sort(result, REGISTRATION_ORDER);
+        }
+        dispatchOrder.put(payloadClass, result);
+        return result;
+    }
+
+    /** Returns the injector classes with an @OnMessage method for the given payload class or one of its supertypes. */
+    Class<?>[] receiversOf(Class<?> payloadClass) {
+        Class<?>[] result = receivers.get(payloadClass);
+        if (result != null) return result;
+
+        ArrayList<Class<?>> found = new ArrayList<Class<?>>();
+        for (Map.Entry<Class<?>, Class<?>[]> entry : messageTypes.entrySet()) {
+            for (Class<?> messageType : entry.getValue()) {
+                if (messageType.isAssignableFrom(payloadClass)) {
+                    found.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        result = found.toArray(new Class<?>[found.size()]);
+        receivers.put(payloadClass, result);
+        return result;
+    }
+
+    /**
+     * Returns a copy of this registry, with the given injector added. The injectors whose
+     * target has been collected are left out, as they may never be dispatched to again.
+     */
+    InjectorRegistry with(Injector injector) {
+        return without(null).plus(injector);
+    }
+
+    private InjectorRegistry plus(Injector injector) {
+        Class<?> injectorClass = injector.getClass();
+        injector.sequence = nextSequence;
+        Map<Class<?>, Injector[]> newInjectors = new LinkedHashMap<Class<?>, Injector[]>(injectors);
+        Injector[] sameClass = get(injectorClass);
+        Injector[] newSameClass = new Injector[sameClass.length + 1];
+        System.arraycopy(sameClass, 0, newSameClass, 0, sameClass.length);
+        newSameClass[sameClass.length] = injector;
+        newInjectors.put(injectorClass, newSameClass);
+        if (messageTypes.containsKey(injectorClass))
+            return new InjectorRegistry(newInjectors, messageTypes, receivers, nextSequence + 1);
+
+        /* the new injector class may receive already resolved payload classes */
+        Map<Class<?>, Class<?>[]> newMessageTypes = new LinkedHashMap<Class<?>, Class<?>[]>(messageTypes);
+        newMessageTypes.put(injectorClass, injector.getMessageTypes());
+        return new InjectorRegistry(newInjectors, newMessageTypes, new ConcurrentHashMap<Class<?>, Class<?>[]>(),
+                nextSequence + 1);
+    }
+
+    /**
+     * Returns a copy of this registry without the injectors of the given target,
+     * nor those whose target has been collected, or this registry if there is none.
+     * @param target the target to remove, or null to only remove the collected ones
+     */
+    InjectorRegistry without(Object target) {
+        Map<Class<?>, Injector[]> newInjectors = null;
+        for (Map.Entry<Class<?>, Injector[]> entry : injectors.entrySet()) {
+            Injector[] sameClass = entry.getValue();
+
+            /* only copy the injectors of this class once one of them is removed */
+            Injector[] kept = null;
+            int keptCount = 0;
+            for (int i = 0; i < sameClass.length; i++) {
+                Object injectorTarget = sameClass[i].getTarget();
+                boolean keep = injectorTarget != null && injectorTarget != target;
+                if (kept != null) {
+                    if (keep) kept[keptCount++] = sameClass[i];
+                } else if (!keep) {
+                    kept = new Injector[sameClass.length - 1];
+                    System.arraycopy(sameClass, 0, kept, 0, i);
+                    keptCount = i;
+                }
+            }
+            if (kept == null) continue;
+            if (newInjectors == null) newInjectors = new LinkedHashMap<Class<?>, Injector[]>(injectors);
+            Injector[] newSameClass = new Injector[keptCount];
+            System.arraycopy(kept, 0, newSameClass, 0, keptCount);
+            newInjectors.put(entry.getKey(), newSameClass);
+        }
+
+        /* injector classes are kept even without injectors, so that the resolved receivers stay valid */
+        return newInjectors == null ? this : new InjectorRegistry(newInjectors, messageTypes, receivers, nextSequence);
+    }
+
+}
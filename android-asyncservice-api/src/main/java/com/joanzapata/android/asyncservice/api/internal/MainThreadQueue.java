@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the deliveries of messages on the main thread, in batches.
+ * <p/>
+ * Deliveries are queued without locking, and run in the order they were posted by a
+ * single pass on the main thread, instead of one looper message each. A pass stops
+ * once its time budget is spent, and the rest runs in the next pass, so that the main
+ * thread can draw frames in between.
+ */
+public final class MainThreadQueue {
+
+    /** Default time budget of a pass, half a frame at 60 fps. */
+    public static final long DEFAULT_TIME_BUDGET_MILLIS = 8;
+
+    private static final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+
+    /** True while a pass is posted and has not finished yet. */
+    private static final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    private static final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private static volatile long timeBudgetMillis = DEFAULT_TIME_BUDGET_MILLIS;
+
+    private static volatile long tickMillis;
+
+    private MainThreadQueue() {
+    }
+
+    /** Run the given delivery on the main thread, after the ones already posted. */
+    public static void post(Runnable delivery) {
+        pending.offer(delivery);
+        if (scheduled.compareAndSet(false, true)) {
+            long tick = tickMillis;
+            if (tick > 0) handler.postDelayed(drain, tick);
+            else handler.post(drain);
+        }
+    }
+
+    /**
+     * Run the given delivery right away if called from the main thread and no delivery
+     * is pending, so that it can't overtake them. Otherwise, post it.
+     */
+    public static void execute(Runnable delivery) {
+        if (isMainThread() && pending.isEmpty()) delivery.run();
+        else post(delivery);
+    }
+
+    /** Returns true if called from the main thread. */
+    public static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Change the time a pass can spend running deliveries. At least one delivery runs per pass.
+     * @param timeBudgetMillis the budget, in milliseconds
+     */
+    public static void setTimeBudget(long timeBudgetMillis) {
+        MainThreadQueue.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * Change the time deliveries are collected before a pass runs them.
+     * Defaults to 0, a pass runs as soon as the main thread is free.
+     * @param tickMillis the delay of a pass after the first delivery, in milliseconds
+     */
+    public static void setTick(long tickMillis) {
+        MainThreadQueue.tickMillis = tickMillis;
+    }
+
+    private static void drain() {
+        long deadline = SystemClock.uptimeMillis() + timeBudgetMillis;
+        try {
+            Runnable delivery;
+            while ((delivery = pending.poll()) != null) {
+                delivery.run();
+                if (SystemClock.uptimeMillis() >= deadline) break;
+            }
+        } finally {
+            /* deliveries posted since the last poll may have seen the flag still set */
+            scheduled.set(false);
+            if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) handler.post(drain);
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import com.joanzapata.android.asyncservice.api.annotation.Priority;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread pool which runs the waiting task with the highest priority first.
+ * <p/>
+ * Each task gets a deadline when submitted: the submission time, delayed by
+ * <code>agingMillis</code> for each priority level below {@link Priority#HIGH}.
+ * Waiting tasks run by order of deadline, then by order of submission. So a
+ * task can't be overtaken by tasks of higher priority submitted more than
+ * <code>(HIGH - priority) * agingMillis</code> after it, which prevents starvation.
+ * <p/>
+ * When {@link BackgroundExecutor#setFair(boolean) fair scheduling} is enabled, each
+ * task also gets a tag, one more than the previous task of the same emitter, and
+ * at least the tag of the last started task. Waiting tasks run by order of tag first,
+ * so the emitters are served round-robin.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+    /** Default delay per priority level, in milliseconds. */
+    public static final long DEFAULT_AGING_MILLIS = 100;
+
+    /** Time after which an idle thread stops, in milliseconds. */
+    public static final long KEEP_ALIVE_MILLIS = 10000;
+
+    private final long agingMillis;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong startedCount = new AtomicLong();
+
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /** Group of the tasks which have no emitter. */
+    private static final Object NO_EMITTER = new Object();
+
+    /** Tag of the last task of each emitter, guarded by itself. */
+    private final Map<Object, long[]> lastTags = new WeakHashMap<Object, long[]>();
+
+    /** Tag of the last started task, guarded by lastTags. */
+    private long virtualTime;
+
+    public PriorityExecutor(int poolSize) {
+        this(poolSize, DEFAULT_AGING_MILLIS);
+    }
+
+    public PriorityExecutor(int poolSize, long agingMillis) {
+        super(poolSize, poolSize, KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+        this.agingMillis = agingMillis;
+
+        /* threads start one per task up to poolSize, and stop when idle */
+        allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(command instanceof PriorityFutureTask ? command : newTaskFor(command, null));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        int priority = runnable instanceof BackgroundExecutor.Task ?
+                ((BackgroundExecutor.Task) runnable).getPriority() : Priority.NORMAL;
+        return new PriorityFutureTask<T>(runnable, value, tag(runnable), deadline(priority), sequence.getAndIncrement());
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new PriorityFutureTask<T>(callable, tag(null), deadline(Priority.NORMAL), sequence.getAndIncrement());
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        super.beforeExecute(thread, runnable);
+        if (!(runnable instanceof PriorityFutureTask)) return;
+        PriorityFutureTask<?> task = (PriorityFutureTask<?>) runnable;
+
+        /* the tasks submitted from now on can't be tagged before this one */
+        if (task.tag > 0) {
+            synchronized (lastTags) {
+                virtualTime = Math.max(virtualTime, task.tag);
+            }
+        }
+
+        /* time spent in the queue, waiting for a thread */
+        long wait = System.nanoTime() - task.submitTime;
+        startedCount.incrementAndGet();
+        totalWaitNanos.addAndGet(wait);
+        long max;
+        while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait)) ;
+    }
+
+    /** Number of tasks which have started. */
+    public long getStartedCount() {
+        return startedCount.get();
+    }
+
+    /** Total time the started tasks have waited for a thread, in milliseconds. */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    /** Longest time a task has waited for a thread, in milliseconds. */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /** Number of tasks waiting for a thread. */
+    public int getQueueSize() {
+        return getQueue().size();
+    }
+
+    /** Returns the fair scheduling tag of the task, or 0 if fair scheduling is disabled. */
+    private long tag(Runnable runnable) {
+        if (!BackgroundExecutor.isFair()) return 0;
+        Object emitter = runnable instanceof BackgroundExecutor.Task ?
+                ((BackgroundExecutor.Task) runnable).getEmitter() : null;
+        if (emitter == null) emitter = NO_EMITTER;
+        synchronized (lastTags) {
+            long[] lastTag = lastTags.get(emitter);
+            if (lastTag == null) lastTags.put(emitter, lastTag = new long[1]);
+            lastTag[0] = Math.max(virtualTime, lastTag[0]) + 1;
+            return lastTag[0];
+        }
+    }
+
+    private long deadline(int priority) {
+        int levels = Math.max(0, Priority.HIGH - Math.max(Priority.LOW, priority));
+        return System.currentTimeMillis() + levels * agingMillis;
+    }
+
+    private static final class PriorityFutureTask<T> extends FutureTask<T> implements Comparable<PriorityFutureTask<?>> {
+
+        private final long tag;
+
+        private final long deadline;
+
+        private final long sequence;
+
+        private final long submitTime = System.nanoTime();
+
+        PriorityFutureTask(Runnable runnable, T value, long tag, long deadline, long sequence) {
+            super(runnable, value);
+            this.tag = tag;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        PriorityFutureTask(Callable<T> callable, long tag, long deadline, long sequence) {
+            super(callable);
+            this.tag = tag;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PriorityFutureTask<?> other) {
+            if (tag != other.tag) return tag < other.tag ? -1 : 1;
+            if (deadline != other.deadline) return deadline < other.deadline ? -1 : 1;
+            if (sequence != other.sequence) return sequence < other.sequence ? -1 : 1;
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes how long a call should be delayed to respect a rate limit,
+ * without locking. This is the generic cell rate algorithm: each call
+ * pushes a theoretical arrival time forward by one interval, and waits
+ * until that time minus the tolerated burst.
+ * Rate limiters are shared by name, see {@link #get(String, int, int, int)}.
+ */
+public final class RateLimiter {
+
+    private static final ConcurrentMap<String, RateLimiter> limiters = new ConcurrentHashMap<String, RateLimiter>();
+
+    private final AtomicLong delayedCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+
+    private final long interval;
+
+    private final long tolerance;
+
+    private final int maxWait;
+
+    /** Theoretical arrival time of the next call, System.nanoTime() */
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param permits   number of calls allowed during <code>perMillis</code>
+     * @param perMillis the period, in milliseconds
+     * @param maxWait   calls which would wait longer are rejected, in milliseconds, -1 for no limit
+     */
+    public RateLimiter(int permits, int perMillis, int maxWait) {
+        long period = TimeUnit.MILLISECONDS.toNanos(perMillis);
+        this.interval = period / permits;
+        this.tolerance = period - interval;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Retrieve the rate limiter of the given name, create it if needed. The limits
+     * of an existing one don't change. Generated services name their rate limiters
+     * after the service, or after the service and the method signature.
+     */
+    public static RateLimiter get(String name, int permits, int perMillis, int maxWait) {
+        RateLimiter limiter = limiters.get(name);
+        if (limiter == null) {
+            RateLimiter newLimiter = new RateLimiter(permits, perMillis, maxWait);
+            limiter = limiters.putIfAbsent(name, newLimiter);
+            if (limiter == null) limiter = newLimiter;
+        }
+        return limiter;
+    }
+
+    /** @return the rate limiter of the given name, or null if it doesn't exist */
+    public static RateLimiter get(String name) {
+        return limiters.get(name);
+    }
+
+    /** @return the delay before the call can start in milliseconds, or -1 if it is rejected */
+    public int acquire() {
+        return acquire(true);
+    }
+
+    /** @return the delay before the call can start in milliseconds, the call is never rejected */
+    public int reserve() {
+        return acquire(false);
+    }
+
+    private int acquire(boolean mayReject) {
+        while (true) {
+            long now = System.nanoTime();
+            long arrival = theoreticalArrival.get();
+            long start = arrival - now > 0 ? arrival : now;
+            long wait = Math.max(0, start - tolerance - now);
+            int waitMillis = (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(wait + 999999));
+            if (mayReject && maxWait >= 0 && waitMillis > maxWait) {
+                rejectedCount.incrementAndGet();
+                return -1;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, start + interval)) {
+                if (waitMillis > 0) {
+                    delayedCount.incrementAndGet();
+                    totalWaitMillis.addAndGet(waitMillis);
+                }
+                return waitMillis;
+            }
+        }
+    }
+
+    /** Number of calls which have been delayed by this rate limit. */
+    public long getDelayedCount() {
+        return delayedCount.get();
+    }
+
+    /** Number of calls which have been rejected because they would have waited too long. */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /** Total time the delayed calls have waited, in milliseconds. */
+    public long getTotalWaitMillis() {
+        return totalWaitMillis.get();
+    }
+
+}
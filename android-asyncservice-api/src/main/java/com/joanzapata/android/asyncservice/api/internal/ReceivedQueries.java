@@ -0,0 +1,158 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import java.util.Arrays;
+
+/**
+ * The queries an injector has received a final, not cached, response for.
+ * <p/>
+ * Only a 64-bit key of the most recently received queries is kept, made of the hash code
+ * and the length of the query, so the memory used is bounded. A query is forgotten once
+ * <code>capacity</code> responses have been received since its last one, long after its
+ * cached response, if any, has been delivered. Two queries with the same key can only
+ * hide a cached response, never a fresh one.
+ */
+public final class ReceivedQueries {
+
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int capacity;
+
+    /** Keys of the last received responses, grown up to capacity, then a ring whose oldest entry is at next. */
+    private long[] received;
+
+    private int next;
+
+    private boolean full;
+
+    /** Open addressing table of the received keys, with linear probing, at most half full. */
+    private long[] keys;
+
+    /** Index in received of the last response of each key, -1 for a free slot. */
+    private int[] positions;
+
+    private int shift;
+
+    private int size;
+
+    public ReceivedQueries() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ReceivedQueries(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity should be at least 1");
+        }
+        this.capacity = capacity;
+        received = new long[Math.min(capacity, INITIAL_CAPACITY)];
+        allocateTable(2 * INITIAL_CAPACITY);
+    }
+
+    /** Returns true if a final response has been received for the given query. */
+    public synchronized boolean contains(String query) {
+        return query != null && find(key(query)) >= 0;
+    }
+
+    /** Remember that a final response has been received for the given query. */
+    public synchronized void add(String query) {
+        if (query == null) return;
+        long key = key(query);
+
+        // Forget the oldest response, unless its query has been received again since
+        if (full) {
+            int slot = find(received[next]);
+            if (slot >= 0 && positions[slot] == next) remove(slot);
+        }
+
+        int slot = find(key);
+        if (slot < 0) {
+            if (2 * (size + 1) > keys.length) {
+                rehash();
+                slot = find(key);
+            }
+            slot = -slot - 1;
+            keys[slot] = key;
+            size++;
+        }
+        positions[slot] = next;
+        received[next] = key;
+        if (++next == received.length) {
+            if (received.length < capacity) {
+                received = Arrays.copyOf(received, Math.min(capacity, 2 * received.length));
+            } else {
+                next = 0;
+                full = true;
+            }
+        }
+    }
+
+    /** The hash code of a string is cached, so the query is only hashed once. */
+    static long key(String query) {
+        return ((long) query.hashCode() << 32) | query.length();
+    }
+
+    private void allocateTable(int length) {
+        keys = new long[length];
+        positions = new int[length];
+        Arrays.fill(positions, -1);
+        shift = Integer.numberOfLeadingZeros(length) + 1;
+    }
+
+    /** Double the size of the table. */
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldPositions = positions;
+        allocateTable(2 * oldKeys.length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldPositions[i] == -1) continue;
+            int slot = -find(oldKeys[i]) - 1;
+            keys[slot] = oldKeys[i];
+            positions[slot] = oldPositions[i];
+        }
+    }
+
+    private int home(long key) {
+        return ((int) (key ^ (key >>> 32)) * 0x9e3779b9) >>> shift;
+    }
+
+    /** Returns the slot of the given key, or -(free slot) - 1 if it's absent. */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int i = home(key); ; i = (i + 1) & mask) {
+            if (positions[i] == -1) return -i - 1;
+            if (keys[i] == key) return i;
+        }
+    }
+
+    /** Free the given slot, and move back the keys after it which can't be found anymore. */
+    private void remove(int slot) {
+        int mask = keys.length - 1;
+        int free = slot;
+        for (int i = (slot + 1) & mask; positions[i] != -1; i = (i + 1) & mask) {
+            if (((i - home(keys[i])) & mask) >= ((i - free) & mask)) {
+                keys[free] = keys[i];
+                positions[free] = positions[i];
+                free = i;
+            }
+        }
+        positions[free] = -1;
+        size--;
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import java.util.Random;
+
+/** Tells whether and when a failed call should be retried, see @Retry. */
+public final class RetryPolicy {
+
+    private static final Random random = new Random();
+
+    private final int max;
+
+    private final int initialDelay;
+
+    private final double multiplier;
+
+    private final double jitter;
+
+    private final Class<?>[] on;
+
+    public RetryPolicy(int max, int initialDelay, double multiplier, double jitter, Class<?>... on) {
+        this.max = max;
+        this.initialDelay = initialDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.on = on;
+    }
+
+    /**
+     * @param error   the error thrown by the last attempt
+     * @param retries the number of retries already made
+     * @return the delay before the next attempt in milliseconds, or -1 if it should not be retried
+     */
+    public int delay(Throwable error, int retries) {
+        if (retries >= max || !isRetryable(error)) return -1;
+        double delay = initialDelay * Math.pow(multiplier, retries);
+        if (jitter > 0) {
+            double factor;
+            synchronized (random) {
+                factor = 2 * random.nextDouble() - 1;
+            }
+            delay += delay * jitter * factor;
+        }
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, delay));
+    }
+
+    private boolean isRetryable(Throwable error) {
+        for (Class<?> errorClass : on)
+            if (errorClass.isInstance(error)) return true;
+        return false;
+    }
+
+}
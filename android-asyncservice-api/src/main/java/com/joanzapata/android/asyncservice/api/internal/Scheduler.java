@@ -0,0 +1,50 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+/**
+ * Tells the time and runs tasks after a delay, for the rate controls.
+ * Tests replace it, so that they don't depend on the real clock.
+ */
+interface Scheduler {
+
+    /** Uses the system clock, and runs tasks on the {@link BackgroundExecutor}. */
+    Scheduler DEFAULT = new Scheduler() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void schedule(BackgroundExecutor.Task task, int delay) {
+            BackgroundExecutor.execute(task.delay(delay));
+        }
+
+        @Override
+        public void cancel(BackgroundExecutor.Task task) {
+            BackgroundExecutor.cancel(task, false);
+        }
+    };
+
+    /** The current time, in milliseconds. */
+    long now();
+
+    /** Run the given task after the given delay, in milliseconds. */
+    void schedule(BackgroundExecutor.Task task, int delay);
+
+    /** Cancel the given task, if it has not started yet. */
+    void cancel(BackgroundExecutor.Task task);
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import com.joanzapata.android.asyncservice.api.annotation.Capacity.Overflow;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of tasks which have been given to {@link BackgroundExecutor#execute(BackgroundExecutor.Task)}
+ * and have not started yet, and sheds the load according to an {@link Overflow} policy.
+ * Bounds are shared by name, see {@link #get(String, int, Overflow)}.
+ */
+public final class TaskBound {
+
+    private static final ConcurrentMap<String, TaskBound> bounds = new ConcurrentHashMap<String, TaskBound>();
+
+    private static final AtomicLong totalShedCount = new AtomicLong();
+
+    private final String name;
+
+    private final int capacity;
+
+    private final Overflow overflow;
+
+    /** Tasks waiting to start in FIFO order, by coalesce key and emitter if coalescing, else by themselves. Guarded by this. */
+    private final LinkedHashMap<Object, BackgroundExecutor.Task> pending = new LinkedHashMap<Object, BackgroundExecutor.Task>();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private TaskBound(String name, int capacity, Overflow overflow) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity should be at least 1");
+        }
+        this.name = name;
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Retrieve the bound of the given name, create it if needed.
+     * The capacity and overflow policy of an existing bound don't change.
+     */
+    public static TaskBound get(String name, int capacity, Overflow overflow) {
+        TaskBound bound = bounds.get(name);
+        if (bound == null) {
+            TaskBound newBound = new TaskBound(name, capacity, overflow);
+            bound = bounds.putIfAbsent(name, newBound);
+            if (bound == null) bound = newBound;
+        }
+        return bound;
+    }
+
+    /** @return the bound of the given name, or null if it doesn't exist */
+    public static TaskBound get(String name) {
+        return bounds.get(name);
+    }
+
+    /**
+     * Try to add the given task to the waiting tasks.
+     * @return null if the task has been added, the task itself if it should not run,
+     * or the task which should be cancelled to make room for it
+     */
+    BackgroundExecutor.Task admit(BackgroundExecutor.Task task) {
+        synchronized (this) {
+            Object key = task.boundKey = key(task);
+            if (overflow == Overflow.COALESCE && pending.containsKey(key)) {
+                coalescedCount.incrementAndGet();
+                totalShedCount.incrementAndGet();
+                return task;
+            }
+
+            BackgroundExecutor.Task shed = null;
+            if (pending.size() >= capacity) {
+                if (overflow == Overflow.DROP_OLDEST) {
+                    Iterator<BackgroundExecutor.Task> oldest = pending.values().iterator();
+                    shed = oldest.next();
+                    oldest.remove();
+                    droppedCount.incrementAndGet();
+                } else {
+                    if (overflow == Overflow.DROP_NEWEST) droppedCount.incrementAndGet();
+                    else rejectedCount.incrementAndGet();
+                    totalShedCount.incrementAndGet();
+                    return task;
+                }
+                totalShedCount.incrementAndGet();
+            }
+
+            pending.put(key, task);
+            return shed;
+        }
+    }
+
+    /** The given task has started or has been cancelled. */
+    synchronized void remove(BackgroundExecutor.Task task) {
+        Object key = task.boundKey;
+        if (key != null && pending.get(key) == task) pending.remove(key);
+    }
+
+    private Object key(BackgroundExecutor.Task task) {
+        return overflow == Overflow.COALESCE && task.getCoalesceKey() != null ? new CoalesceKey(task) : task;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Number of tasks waiting to start. */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Number of new tasks which have not run because the capacity was reached, see REJECT and COALESCE. */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /** Number of tasks which have not run because of DROP_OLDEST or DROP_NEWEST. */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /** Number of new tasks which have not run because an identical one was waiting, see COALESCE. */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /** Number of tasks which have not run because of any bound. */
+    public static long getTotalShedCount() {
+        return totalShedCount.get();
+    }
+
+    /**
+     * Tasks can only be coalesced if they run the same call for the same emitter,
+     * so that the result of the waiting one reaches the caller of the new one.
+     */
+    private static final class CoalesceKey {
+
+        private final String call;
+
+        /** Weak key of the emitter, see {@link BackgroundExecutor.Task#getEmitterKey()}. */
+        private final Object emitterKey;
+
+        CoalesceKey(BackgroundExecutor.Task task) {
+            call = task.getCoalesceKey();
+            emitterKey = task.getEmitterKey();
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * call.hashCode() + (emitterKey == null ? 0 : emitterKey.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof CoalesceKey)) return false;
+            CoalesceKey other = (CoalesceKey) o;
+            return call.equals(other.call) &&
+                    (emitterKey == null ? other.emitterKey == null : emitterKey.equals(other.emitterKey));
+        }
+
+    }
+
+}
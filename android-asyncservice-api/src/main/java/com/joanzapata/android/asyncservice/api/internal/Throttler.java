@@ -0,0 +1,69 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+/**
+ * Executes at most one task per window. A task executed while the
+ * window is closed is delayed until it opens, and replaces the task
+ * previously delayed, if any. So the last task of a burst always runs.
+ */
+public final class Throttler {
+
+    private final int window;
+
+    private final Scheduler scheduler;
+
+    /** Earliest time at which a task can start without being delayed, guarded by this */
+    private long nextWindow;
+
+    /** The task delayed until the window opens, if any, guarded by this */
+    private BackgroundExecutor.Task trailing;
+
+    /** Time at which the trailing task starts, guarded by this */
+    private long trailingTime;
+
+    /** @param window Minimum time between the start of two tasks, in milliseconds. */
+    public Throttler(int window) {
+        this(window, Scheduler.DEFAULT);
+    }
+
+    Throttler(int window, Scheduler scheduler) {
+        this.window = window;
+        this.scheduler = scheduler;
+    }
+
+    public synchronized void execute(BackgroundExecutor.Task task) {
+        long now = scheduler.now();
+        if (trailing != null && now < trailingTime) {
+            // Replace the trailing task, it hasn't started yet
+            scheduler.cancel(trailing);
+            trailing = task;
+            scheduler.schedule(task, (int) (trailingTime - now));
+        } else if (now >= nextWindow) {
+            // The window is open, run immediately
+            trailing = null;
+            nextWindow = now + window;
+            scheduler.schedule(task, 0);
+        } else {
+            // Wait for the window to open
+            trailing = task;
+            trailingTime = nextWindow;
+            nextWindow += window;
+            scheduler.schedule(task, (int) (trailingTime - now));
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DebouncerTest {
+
+    private static final int DELAY = 100;
+
+    @Test
+    public void burstRunsOnceWithLastCall() {
+        FakeScheduler scheduler = new FakeScheduler();
+        Debouncer debouncer = new Debouncer(DELAY, scheduler);
+
+        // 50 calls, 10ms apart, so each one replaces the previous
+        for (int i = 0; i < 50; i++) {
+            debouncer.execute(scheduler.call(i));
+            scheduler.advance(10);
+        }
+        scheduler.advance(DELAY);
+
+        assertEquals(1, scheduler.executed.size());
+        assertEquals(49, scheduler.lastCall());
+        assertEquals(490 + DELAY, (long) scheduler.executionTimes.get(0));
+    }
+
+    @Test
+    public void spacedCallsAllRun() {
+        FakeScheduler scheduler = new FakeScheduler();
+        Debouncer debouncer = new Debouncer(DELAY, scheduler);
+
+        for (int i = 0; i < 3; i++) {
+            debouncer.execute(scheduler.call(i));
+            scheduler.advance(DELAY);
+        }
+
+        assertEquals(3, scheduler.executed.size());
+        assertEquals(2, scheduler.lastCall());
+    }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultExecutorTest {
+
+    private static final String PACKAGE = BackgroundExecutor.class.getPackage().getName() + ".";
+
+    /** Loads the classes of this package again, and records which ones are initialized. */
+    private static class IsolatingClassLoader extends ClassLoader {
+
+        final Set<String> loaded = Collections.synchronizedSet(new HashSet<String>());
+
+        IsolatingClassLoader() {
+            super(DefaultExecutorTest.class.getClassLoader());
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(PACKAGE) || name.startsWith(DefaultExecutorTest.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                byte[] bytes = read(name.replace('.', '/') + ".class");
+                c = defineClass(name, bytes, 0, bytes.length);
+                loaded.add(name);
+            }
+            if (resolve) resolveClass(c);
+            return c;
+        }
+
+        private byte[] read(String resource) throws ClassNotFoundException {
+            InputStream in = getParent().getResourceAsStream(resource);
+            if (in == null) throw new ClassNotFoundException(resource);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int n; (n = in.read(buffer)) != -1; ) out.write(buffer, 0, n);
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new ClassNotFoundException(resource, e);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void loadingBackgroundExecutorDoesNotCreateThePool() throws Exception {
+        IsolatingClassLoader loader = new IsolatingClassLoader();
+        Class.forName(BackgroundExecutor.class.getName(), true, loader);
+
+        assertTrue(loader.loaded.contains(BackgroundExecutor.class.getName()));
+        assertFalse(loader.loaded.contains(BackgroundExecutor.class.getName() + "$DefaultExecutorHolder"));
+        assertFalse(loader.loaded.contains(PriorityExecutor.class.getName()));
+    }
+
+    @Test
+    public void threadsStartOnDemandAndStopWhenIdle() throws Exception {
+        PriorityExecutor executor = new PriorityExecutor(4);
+        executor.setKeepAliveTime(50, TimeUnit.MILLISECONDS);
+        try {
+            assertEquals(0, executor.getPoolSize());
+
+            final CountDownLatch started = new CountDownLatch(2);
+            final CountDownLatch release = new CountDownLatch(1);
+            for (int i = 0; i < 2; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(2, executor.getPoolSize());
+            release.countDown();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (executor.getPoolSize() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, executor.getPoolSize());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
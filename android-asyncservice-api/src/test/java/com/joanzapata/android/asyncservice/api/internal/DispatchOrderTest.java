@@ -0,0 +1,130 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import com.joanzapata.android.asyncservice.api.Message;
+import com.joanzapata.android.asyncservice.api.annotation.OnMessage.Priority;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DispatchOrderTest {
+
+    /** A target which records the messages it receives. */
+    private static class Receiver {
+
+        final String name;
+
+        final List<String> received;
+
+        Receiver(String name, List<String> received) {
+            this.name = name;
+            this.received = received;
+        }
+    }
+
+    /** Receives String messages, like a generated injector with an @OnMessage(String) method. */
+    private static class StringInjector extends Injector<Receiver> {
+
+        @Override
+        protected void inject(Receiver injectable) {
+        }
+
+        @Override
+        protected Injector<Receiver> newInjector() {
+            return new StringInjector();
+        }
+
+        @Override
+        protected Class<?>[] getMessageTypes() {
+            return new Class<?>[]{String.class};
+        }
+
+        @Override
+        protected void dispatch(Receiver target, Message event, Priority priority) {
+            if (priority == Priority.FIRST && event.getPayload() instanceof String)
+                target.received.add(target.name);
+        }
+    }
+
+    /** Receives any message, so it is another injector class which can receive String messages. */
+    private static class ObjectInjector extends StringInjector {
+
+        @Override
+        protected Injector<Receiver> newInjector() {
+            return new ObjectInjector();
+        }
+
+        @Override
+        protected Class<?>[] getMessageTypes() {
+            return new Class<?>[]{Object.class};
+        }
+    }
+
+    private static void register(Injector<Receiver> injector, Receiver target) {
+        injector.setTarget(target);
+        AsyncService.injectors.set(AsyncService.injectors.get().with(injector));
+    }
+
+    @Test
+    public void injectorsOfDifferentClassesReceiveInOrderOfRegistration() {
+        List<String> received = new ArrayList<String>();
+        Receiver a1 = new Receiver("a1", received);
+        Receiver b1 = new Receiver("b1", received);
+        Receiver a2 = new Receiver("a2", received);
+        Receiver b2 = new Receiver("b2", received);
+        try {
+            register(new StringInjector(), a1);
+            register(new ObjectInjector(), b1);
+            register(new StringInjector(), a2);
+            register(new ObjectInjector(), b2);
+
+            AsyncService.dispatch("message");
+            assertEquals("[a1, b1, a2, b2]", received.toString());
+
+            // Order is kept once an injector is removed and another one is added
+            received.clear();
+            AsyncService.unregister(b1);
+            register(new ObjectInjector(), b1);
+            AsyncService.dispatch("message");
+            assertEquals("[a1, a2, b2, b1]", received.toString());
+        } finally {
+            AsyncService.injectors.set(InjectorRegistry.EMPTY);
+        }
+    }
+
+    @Test
+    public void onlyInjectorsWhichCanReceiveTheMessageAreCalled() {
+        List<String> received = new ArrayList<String>();
+        Receiver a = new Receiver("a", received);
+        Receiver b = new Receiver("b", received);
+        try {
+            register(new StringInjector(), a);
+            register(new ObjectInjector(), b);
+
+            AsyncService.dispatch(Integer.valueOf(1));
+            assertEquals("[]", received.toString());
+            AsyncService.dispatch("message");
+            assertEquals("[a, b]", received.toString());
+        } finally {
+            AsyncService.injectors.set(InjectorRegistry.EMPTY);
+        }
+    }
+
+}
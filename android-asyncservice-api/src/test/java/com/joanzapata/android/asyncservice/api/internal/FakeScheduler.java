@@ -0,0 +1,113 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scheduler with a virtual clock: tasks only run when the clock is moved
+ * forward with {@link #advance(long)}, on the calling thread, in time order.
+ */
+final class FakeScheduler implements Scheduler {
+
+    private long now;
+
+    /** Tasks waiting to run, in scheduling order */
+    private final List<Scheduled> scheduled = new ArrayList<Scheduled>();
+
+    /** Tasks which have run, in order */
+    final List<CallTask> executed = new ArrayList<CallTask>();
+
+    /** Time at which each executed task has run */
+    final List<Long> executionTimes = new ArrayList<Long>();
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    @Override
+    public void schedule(BackgroundExecutor.Task task, int delay) {
+        scheduled.add(new Scheduled(task, now + delay));
+    }
+
+    @Override
+    public void cancel(BackgroundExecutor.Task task) {
+        for (int i = 0; i < scheduled.size(); i++) {
+            if (scheduled.get(i).task == task) {
+                scheduled.remove(i);
+                return;
+            }
+        }
+    }
+
+    /** Move the clock forward, running the tasks which become due on the way. */
+    void advance(long millis) {
+        long target = now + millis;
+        while (true) {
+            Scheduled next = null;
+            for (Scheduled candidate : scheduled)
+                if (candidate.time <= target && (next == null || candidate.time < next.time)) next = candidate;
+            if (next == null) break;
+            scheduled.remove(next);
+            now = next.time;
+            next.task.execute();
+        }
+        now = target;
+    }
+
+    /** A task which records its execution, as the call of the given index. */
+    CallTask call(int index) {
+        return new CallTask(index);
+    }
+
+    /** The index of the last executed call, or -1. */
+    int lastCall() {
+        return executed.isEmpty() ? -1 : executed.get(executed.size() - 1).index;
+    }
+
+    final class CallTask extends BackgroundExecutor.Task {
+
+        final int index;
+
+        CallTask(int index) {
+            super("", 0, "");
+            this.index = index;
+        }
+
+        @Override
+        public void execute() {
+            executed.add(this);
+            executionTimes.add(now);
+        }
+
+    }
+
+    private static final class Scheduled {
+
+        final BackgroundExecutor.Task task;
+
+        final long time;
+
+        Scheduled(BackgroundExecutor.Task task, long time) {
+            this.task = task;
+            this.time = time;
+        }
+
+    }
+
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import com.joanzapata.android.asyncservice.api.Message;
+import com.joanzapata.android.asyncservice.api.annotation.OnMessage.Priority;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class InjectorIndexTest {
+
+    private static class Target {
+        int injected;
+    }
+
+    private static class OtherTarget extends Target {
+    }
+
+    /** Hand-written injector, nested classes can't be found by name so only an index can provide it. */
+    private static class TargetInjector extends Injector<Target> {
+
+        @Override
+        protected void inject(Target injectable) {
+            injectable.injected++;
+        }
+
+        @Override
+        protected Injector<Target> newInjector() {
+            return new TargetInjector();
+        }
+
+        @Override
+        protected Class<?>[] getMessageTypes() {
+            return new Class<?>[0];
+        }
+
+        @Override
+        protected void dispatch(Target target, Message event, Priority priority) {
+        }
+    }
+
+    @Test
+    public void brokenIndexDoesNotPreventOthers() {
+        try {
+            AsyncService.addInjectorIndex(new InjectorIndex() {
+                @Override
+                public void registerInjectors(Map<Class<?>, Injector<?>> injectors) {
+                    injectors.put(OtherTarget.class, new TargetInjector());
+                    throw new NoClassDefFoundError("RemovedInjector");
+                }
+            });
+            AsyncService.addInjectorIndex(new InjectorIndex() {
+                @Override
+                public void registerInjectors(Map<Class<?>, Injector<?>> injectors) {
+                    injectors.put(Target.class, new TargetInjector());
+                }
+            });
+
+            Target target = new Target();
+            AsyncService.inject(target);
+            assertEquals(1, target.injected);
+
+            // Injected through the injector of its superclass
+            OtherTarget otherTarget = new OtherTarget();
+            AsyncService.inject(otherTarget);
+            assertEquals(1, otherTarget.injected);
+        } finally {
+            AsyncService.injectors.set(InjectorRegistry.EMPTY);
+        }
+    }
+
+}
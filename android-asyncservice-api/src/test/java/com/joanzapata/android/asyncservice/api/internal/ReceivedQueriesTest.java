@@ -0,0 +1,51 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReceivedQueriesTest {
+
+    @Test
+    public void queryIsForgottenAfterCapacityResponses() {
+        ReceivedQueries queries = new ReceivedQueries(100);
+        queries.add("query");
+        for (int i = 0; i < 99; i++) queries.add("other" + i);
+        assertTrue(queries.contains("query"));
+
+        queries.add("other99");
+        assertFalse(queries.contains("query"));
+        assertTrue(queries.contains("other99"));
+        assertFalse(queries.contains(null));
+    }
+
+    @Test
+    public void queryReceivedAgainIsKept() {
+        ReceivedQueries queries = new ReceivedQueries(100);
+        queries.add("query");
+        for (int i = 0; i < 1000; i++) {
+            queries.add("other" + i);
+            if (i % 50 == 0) queries.add("query");
+        }
+        assertTrue(queries.contains("query"));
+        assertFalse(queries.contains("other0"));
+        assertTrue(queries.contains("other999"));
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import com.joanzapata.android.asyncservice.api.annotation.Capacity.Overflow;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+public class TaskBoundTest {
+
+    /** Holds the submitted tasks until run() is called, so they all wait in the bound meanwhile. */
+    private static class QueueExecutor implements Executor {
+
+        final List<Runnable> queue = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            queue.add(runnable);
+        }
+
+        void run() {
+            for (Runnable runnable : queue) runnable.run();
+            queue.clear();
+        }
+    }
+
+    private static class CallTask extends BackgroundExecutor.Task {
+
+        private final List<String> executed;
+
+        private final String call;
+
+        CallTask(String id, String call, List<String> executed) {
+            super(id, 0, "");
+            this.call = call;
+            this.executed = executed;
+        }
+
+        @Override
+        public void execute() {
+            executed.add(call);
+        }
+    }
+
+    @Test
+    public void callsSharingAnIdWithDifferentArgumentsBothRun() {
+        List<String> executed = new ArrayList<String>();
+        TaskBound bound = TaskBound.get("test:sameId", 2, Overflow.COALESCE);
+        Object emitter = new Object();
+        QueueExecutor executor = new QueueExecutor();
+        BackgroundExecutor.setExecutor(executor);
+        try {
+            BackgroundExecutor.execute(new CallTask("grp", "bounded(1)", executed)
+                    .bound(bound).coalesceKey("bounded(1)").emitter(emitter));
+            BackgroundExecutor.execute(new CallTask("grp", "bounded(2)", executed)
+                    .bound(bound).coalesceKey("bounded(2)").emitter(emitter));
+            assertEquals(2, bound.getPendingCount());
+
+            executor.run();
+        } finally {
+            BackgroundExecutor.setExecutor(null);
+        }
+
+        assertEquals(2, executed.size());
+        assertEquals("bounded(1)", executed.get(0));
+        assertEquals("bounded(2)", executed.get(1));
+        assertEquals(0, bound.getCoalescedCount());
+        assertEquals(0, bound.getPendingCount());
+    }
+
+    @Test
+    public void identicalCallOfTheSameEmitterIsCoalesced() {
+        List<String> executed = new ArrayList<String>();
+        TaskBound bound = TaskBound.get("test:sameCall", 2, Overflow.COALESCE);
+        Object emitter = new Object();
+        Object otherEmitter = new Object();
+        QueueExecutor executor = new QueueExecutor();
+        BackgroundExecutor.setExecutor(executor);
+        try {
+            BackgroundExecutor.execute(new CallTask("", "bounded(1)", executed)
+                    .bound(bound).coalesceKey("bounded(1)").emitter(emitter));
+            BackgroundExecutor.execute(new CallTask("", "bounded(1)", executed)
+                    .bound(bound).coalesceKey("bounded(1)").emitter(emitter));
+            BackgroundExecutor.execute(new CallTask("", "bounded(1) for other", executed)
+                    .bound(bound).coalesceKey("bounded(1)").emitter(otherEmitter));
+
+            executor.run();
+        } finally {
+            BackgroundExecutor.setExecutor(null);
+        }
+
+        assertEquals(2, executed.size());
+        assertEquals("bounded(1)", executed.get(0));
+        assertEquals("bounded(1) for other", executed.get(1));
+        assertEquals(1, bound.getCoalescedCount());
+    }
+
+}
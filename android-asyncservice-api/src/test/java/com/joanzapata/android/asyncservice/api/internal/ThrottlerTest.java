@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014 Joan Zapata
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joanzapata.android.asyncservice.api.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThrottlerTest {
+
+    private static final int WINDOW = 100;
+
+    @Test
+    public void burstRunsOncePerWindowWithLastCall() {
+        FakeScheduler scheduler = new FakeScheduler();
+        Throttler throttler = new Throttler(WINDOW, scheduler);
+
+        // 50 calls, 10ms apart, over 500ms
+        for (int i = 0; i < 50; i++) {
+            throttler.execute(scheduler.call(i));
+            scheduler.advance(10);
+        }
+        scheduler.advance(WINDOW);
+
+        // The first call runs right away, then the last call of each window when the next one opens
+        assertEquals(6, scheduler.executed.size());
+        for (int i = 0; i < 6; i++)
+            assertEquals(i * WINDOW, (long) scheduler.executionTimes.get(i));
+        assertEquals(49, scheduler.lastCall());
+    }
+
+    @Test
+    public void spacedCallsAllRun() {
+        FakeScheduler scheduler = new FakeScheduler();
+        Throttler throttler = new Throttler(WINDOW, scheduler);
+
+        for (int i = 0; i < 3; i++) {
+            throttler.execute(scheduler.call(i));
+            scheduler.advance(2 * WINDOW);
+        }
+
+        assertEquals(3, scheduler.executed.size());
+        assertEquals(2, scheduler.lastCall());
+    }
+
+}
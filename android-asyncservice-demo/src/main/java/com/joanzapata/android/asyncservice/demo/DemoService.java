@@ -49,7 +49,9 @@ public class DemoService {
     }
 
     /*
-        By default, methods are executed in a background thread.
+        By default, methods are executed concurrently in a background thread.
+        Use @Serial to execute them one at a time, or @AsyncService(mode = SERIAL)
+        to do so for all methods of the service.
         No caching is involved.
     */
     @Null(NoUserEvent.class)
@@ -15,20 +15,41 @@
  */
 package com.joanzapata.android.asyncservice.processors;
 
+import com.joanzapata.android.asyncservice.api.AsyncResult;
 import com.joanzapata.android.asyncservice.api.EnhancedService;
 import com.joanzapata.android.asyncservice.api.ErrorMapper;
 import com.joanzapata.android.asyncservice.api.Message;
+import com.joanzapata.android.asyncservice.api.MessageStream;
 import com.joanzapata.android.asyncservice.api.annotation.ApplicationContext;
+import com.joanzapata.android.asyncservice.api.annotation.Batch;
 import com.joanzapata.android.asyncservice.api.annotation.CacheThenCall;
+import com.joanzapata.android.asyncservice.api.annotation.Capacity;
+import com.joanzapata.android.asyncservice.api.annotation.Coalesce;
+import com.joanzapata.android.asyncservice.api.annotation.Compute;
+import com.joanzapata.android.asyncservice.api.annotation.Debounce;
 import com.joanzapata.android.asyncservice.api.annotation.ErrorManagement;
 import com.joanzapata.android.asyncservice.api.annotation.Id;
 import com.joanzapata.android.asyncservice.api.annotation.Init;
+import com.joanzapata.android.asyncservice.api.annotation.Io;
 import com.joanzapata.android.asyncservice.api.annotation.Null;
+import com.joanzapata.android.asyncservice.api.annotation.Parallel;
+import com.joanzapata.android.asyncservice.api.annotation.Priority;
+import com.joanzapata.android.asyncservice.api.annotation.RateLimit;
+import com.joanzapata.android.asyncservice.api.annotation.Retry;
 import com.joanzapata.android.asyncservice.api.annotation.Serial;
+import com.joanzapata.android.asyncservice.api.annotation.Throttle;
+import com.joanzapata.android.asyncservice.api.annotation.Timeout;
 import com.joanzapata.android.asyncservice.api.annotation.ThrowerParam;
 import com.joanzapata.android.asyncservice.api.annotation.Ui;
 import com.joanzapata.android.asyncservice.api.internal.AsyncService;
 import com.joanzapata.android.asyncservice.api.internal.BackgroundExecutor;
+import com.joanzapata.android.asyncservice.api.internal.Batcher;
+import com.joanzapata.android.asyncservice.api.internal.Debouncer;
+import com.joanzapata.android.asyncservice.api.internal.InFlightCalls;
+import com.joanzapata.android.asyncservice.api.internal.RateLimiter;
+import com.joanzapata.android.asyncservice.api.internal.RetryPolicy;
+import com.joanzapata.android.asyncservice.api.internal.TaskBound;
+import com.joanzapata.android.asyncservice.api.internal.Throttler;
 import com.joanzapata.android.asyncservice.processors.utils.Logger;
 import com.joanzapata.android.asyncservice.processors.utils.Utils;
 import com.squareup.javawriter.JavaWriter;
@@ -39,19 +60,26 @@ import javax.annotation.processing.SupportedAnnotationTypes;
 import javax.annotation.processing.SupportedSourceVersion;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
 import javax.tools.JavaFileObject;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static com.joanzapata.android.asyncservice.processors.utils.Utils.*;
@@ -65,6 +93,9 @@ public class AsyncServiceAP extends AbstractProcessor {
     public static final String GENERATED_CLASS_SUFFIX = "Impl";
     private Logger logger;
 
+    /** The concurrency declared for each serial, which must be the same on all its methods. */
+    private final Map<String, Integer> serialConcurrencies = new HashMap<String, Integer>();
+
     @Override
     public boolean process(Set<? extends TypeElement> typeElements, RoundEnvironment roundEnvironment) {
         try {
@@ -105,11 +136,21 @@ public class AsyncServiceAP extends AbstractProcessor {
                 // Emit general imports
                 JavaWriter writer = javaWriter.emitPackage(elementPackage)
                         .emitImports(AsyncService.class,
+                                AsyncResult.class,
                                 Message.class,
+                                MessageStream.class,
                                 BackgroundExecutor.class,
+                                InFlightCalls.class,
+                                Debouncer.class,
+                                Throttler.class,
+                                RetryPolicy.class,
+                                Batcher.class,
+                                RateLimiter.class,
+                                TaskBound.class,
                                 ErrorMapper.class,
                                 Serializable.class,
-                                List.class)
+                                List.class,
+                                WeakReference.class)
                         .emitImports(
                                 "android.os.Handler",
                                 "android.os.Looper",
@@ -119,9 +160,9 @@ public class AsyncServiceAP extends AbstractProcessor {
                         .emitEmptyLine()
                         .beginType(newElementName, "class", of(PUBLIC, FINAL), minimServiceElement.toString());
 
-                // Create the emitter field
+                // Create the emitter field, weak so that pending tasks don't leak the emitter
                 writer.emitEmptyLine()
-                        .emitField("Object", "emitter", of(PRIVATE, FINAL));
+                        .emitField("WeakReference<Object>", "emitter", of(PRIVATE, FINAL));
 
                 // Create the UI thread handler
                 writer.emitEmptyLine()
@@ -137,7 +178,7 @@ public class AsyncServiceAP extends AbstractProcessor {
                 // Generate a public constructor
                 writer.emitEmptyLine()
                         .beginConstructor(of(PUBLIC), "Object", "emitter")
-                        .emitStatement("this.emitter = emitter");
+                        .emitStatement("this.emitter = new WeakReference<Object>(emitter)");
 
                 // If any @ApplicationContext, inject it here
                 List<Element> applicationContextFields = findElementsAnnotatedWith((TypeElement) minimServiceElement, ApplicationContext.class);
@@ -152,9 +193,27 @@ public class AsyncServiceAP extends AbstractProcessor {
 
                 writer.endConstructor();
 
-                // Manage each method
+                // A rate limit on the service is shared by all its instances
+                AnnotationMirror rateLimitAnnotation = getAnnotation(minimServiceElement, RateLimit.class);
+                if (rateLimitAnnotation != null) {
+                    writer.emitEmptyLine()
+                            .emitField("RateLimiter", "__rateLimiter", of(PRIVATE, STATIC, FINAL),
+                                    createRateLimiter(minimServiceElement, rateLimitAnnotation,
+                                            ((TypeElement) minimServiceElement).getQualifiedName().toString()));
+                }
+
+                // A capacity on the service bounds the calls of all its methods
+                AnnotationMirror capacityAnnotation = getAnnotation(minimServiceElement, Capacity.class);
+                if (capacityAnnotation != null) {
+                    writer.emitEmptyLine()
+                            .emitField("TaskBound", "__bound", of(PRIVATE, STATIC, FINAL),
+                                    createTaskBound(minimServiceElement, capacityAnnotation, minimServiceElement.toString()));
+                }
+
+                // Manage each method, bulk methods of @Batch are only called by the batch
+                Set<String> batchTargets = findBatchTargets(minimServiceElement);
                 for (Element element : minimServiceElement.getEnclosedElements())
-                    if (isMethod(element))
+                    if (isMethod(element) && !batchTargets.contains(element.getSimpleName().toString()))
                         createDelegateMethod(writer, (ExecutableElement) element, newElementName);
 
                 // Implement EnhancedService interface if needed
@@ -183,11 +242,16 @@ public class AsyncServiceAP extends AbstractProcessor {
                             .emitAnnotation(Override.class)
                             .beginMethod("void", "send", of(PUBLIC), "Object", "payload")
                             .emitStatement("Message message = new Message(payload)")
-                            .emitStatement("message.setEmitter(emitter)")
+                            .emitStatement("message.setEmitter(emitter.get())")
                             .emitStatement("AsyncService.dispatch(message)")
                             .endMethod()
                             .emitEmptyLine()
                             .emitAnnotation(Override.class)
+                            .beginMethod("<T> MessageStream<T>", "stream", of(PUBLIC), "int", "chunkSize")
+                            .emitStatement("return new MessageStream<T>(emitter.get(), chunkSize)")
+                            .endMethod()
+                            .emitEmptyLine()
+                            .emitAnnotation(Override.class)
                             .beginMethod("void", "clearCache", of(PUBLIC), "String", "key")
                             .emitStatement("AsyncServiceCache.remove(key)")
                             .endMethod()
@@ -208,6 +272,100 @@ public class AsyncServiceAP extends AbstractProcessor {
         }
     }
 
+    /** Check the values of @RateLimit, and return the code which retrieves the rate limiter of the given name. */
+    private String createRateLimiter(Element element, AnnotationMirror rateLimitAnnotation, String name) {
+        Integer permits = getAnnotationValueOrDefault(rateLimitAnnotation, "permits");
+        Integer perMillis = getAnnotationValueOrDefault(rateLimitAnnotation, "perMillis");
+        Integer maxWait = getAnnotationValueOrDefault(rateLimitAnnotation, "maxWaitMs");
+        if (permits < 1)
+            logger.error(element, rateLimitAnnotation, "permits", "The number of permits should be at least 1.");
+        if (perMillis < 1)
+            logger.error(element, rateLimitAnnotation, "perMillis", "The period should be at least 1ms.");
+        if (maxWait < -1)
+            logger.error(element, rateLimitAnnotation, "maxWaitMs", "The maximum wait can't be negative, except -1 for no limit.");
+        TypeMirror rejectedClass = getAnnotationValue(rateLimitAnnotation, "send");
+        if (rejectedClass != null) {
+            TypeElement rejectedTypeElement = processingEnv.getElementUtils().getTypeElement(rejectedClass.toString());
+            if (isAbstract(rejectedTypeElement))
+                logger.error(element, rateLimitAnnotation, "send", "The rejection message type should not be abstract.");
+            if (!hasPublicConstructor(rejectedTypeElement))
+                logger.error(element, rateLimitAnnotation, "send", "The rejection message type must have a public no-arg constructor.");
+        }
+        return "RateLimiter.get(\"" + name + "\", " + permits + ", " + perMillis + ", " + maxWait + ")";
+    }
+
+    /** Returns the type of the value of the AsyncResult returned by the method, or null if it returns something else. */
+    private TypeMirror getAsyncResultType(ExecutableElement method) {
+        TypeMirror returnType = method.getReturnType();
+        if (!(returnType instanceof DeclaredType)) return null;
+        TypeElement element = (TypeElement) ((DeclaredType) returnType).asElement();
+        if (!element.getQualifiedName().contentEquals(AsyncResult.class.getCanonicalName())) return null;
+        List<? extends TypeMirror> typeArguments = ((DeclaredType) returnType).getTypeArguments();
+        if (typeArguments.isEmpty()) {
+            logger.error(method, "The type of the value of the AsyncResult is needed.");
+            return null;
+        }
+        return typeArguments.get(0);
+    }
+
+    /** Returns the name of the pool defined by @Io or @Compute on the element, if any. */
+    private String getPool(Element element) {
+        AnnotationMirror io = getAnnotation(element, Io.class);
+        AnnotationMirror compute = getAnnotation(element, Compute.class);
+        if (io != null && compute != null)
+            logger.error(element, compute, "You can't use both @Io and @Compute on the same element.");
+        return io != null ? "IO" : compute != null ? "COMPUTE" : null;
+    }
+
+    /** Check the values of @Capacity, and return the code which retrieves the bound. */
+    private String createTaskBound(Element element, AnnotationMirror capacityAnnotation, String name) {
+        Integer capacity = getAnnotationValue(capacityAnnotation, "value");
+        VariableElement overflow = getAnnotationValueOrDefault(capacityAnnotation, "overflow");
+        if (capacity < 1)
+            logger.error(element, capacityAnnotation, "value", "The capacity should be at least 1.");
+        TypeMirror overflowClass = getAnnotationValue(capacityAnnotation, "send");
+        if (overflowClass != null) {
+            if (!Capacity.Overflow.REJECT.toString().equals(overflow.toString()))
+                logger.error(element, capacityAnnotation, "send", "A message can only be sent with the REJECT overflow policy.");
+            TypeElement overflowTypeElement = processingEnv.getElementUtils().getTypeElement(overflowClass.toString());
+            if (isAbstract(overflowTypeElement))
+                logger.error(element, capacityAnnotation, "send", "The overflow message type should not be abstract.");
+            if (!hasPublicConstructor(overflowTypeElement))
+                logger.error(element, capacityAnnotation, "send", "The overflow message type must have a public no-arg constructor.");
+        }
+        return "TaskBound.get(\"" + name + "\", " + capacity + ", " +
+                Capacity.Overflow.class.getCanonicalName() + "." + overflow + ")";
+    }
+
+    private Set<String> findBatchTargets(Element minimServiceElement) {
+        Set<String> targets = new HashSet<String>();
+        for (Element element : minimServiceElement.getEnclosedElements()) {
+            AnnotationMirror batchAnnotation = getAnnotation(element, Batch.class);
+            if (batchAnnotation != null) targets.add((String) getAnnotationValue(batchAnnotation, "target"));
+        }
+        return targets;
+    }
+
+    /** Return true if methods without @Serial should run on the default serial. */
+    private boolean isSerialMode(Element minimServiceElement) {
+        AnnotationMirror asyncServiceAnnotation = getAnnotation(minimServiceElement, com.joanzapata.android.asyncservice.api.annotation.AsyncService.class);
+        VariableElement value = getAnnotationValue(asyncServiceAnnotation, "mode");
+        return com.joanzapata.android.asyncservice.api.annotation.AsyncService.Mode.SERIAL.toString().equals("" + value);
+    }
+
+    /** Same as Utils.getAnnotationValue(), but falls back to the default value of the annotation. */
+    @SuppressWarnings("unchecked")
+    private <T> T getAnnotationValueOrDefault(AnnotationMirror annotationMirror, String key) {
+        Map<? extends ExecutableElement, ? extends AnnotationValue> values =
+                processingEnv.getElementUtils().getElementValuesWithDefaults(annotationMirror);
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet()) {
+            if (entry.getKey().getSimpleName().toString().equals(key)) {
+                return (T) entry.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
     private String findErrorMapperClassName(Element minimServiceElement) {
         AnnotationMirror asyncServiceAnnotation = getAnnotation(minimServiceElement, com.joanzapata.android.asyncservice.api.annotation.AsyncService.class);
         Object value = getAnnotationValue(asyncServiceAnnotation, "errorMapper");
@@ -252,7 +410,14 @@ public class AsyncServiceAP extends AbstractProcessor {
         if (isCached && !hasResult)
             logger.error(method, cachedAnnotation, "@CacheThenCall annotated method should not return void.");
 
-        if (hasResult && hasTypeParameters(processingEnv, method.getReturnType()))
+        // An AsyncResult is returned to the caller, and completed with the value it holds
+        TypeMirror resultType = hasResult ? getAsyncResultType(method) : null;
+        boolean isAsyncResult = resultType != null;
+        if (hasResult && !isAsyncResult) resultType = method.getReturnType();
+        if (isAsyncResult && (isUiThread || isCached))
+            logger.error(method, "@Ui and @CacheThenCall methods can't return an AsyncResult.");
+
+        if (hasResult && hasTypeParameters(processingEnv, resultType))
             logger.error(method, "You can't use parametrized types in your method return type.");
 
         String annotationCacheToParse = null;
@@ -267,6 +432,125 @@ public class AsyncServiceAP extends AbstractProcessor {
                 logger.error(method, method.getReturnType() + " should implement Serializable in order to be cached.");
         }
 
+        // Debounced and throttled methods need a field to keep track of previous calls
+        AnnotationMirror debounceAnnotation = getAnnotation(method, Debounce.class);
+        AnnotationMirror throttleAnnotation = getAnnotation(method, Throttle.class);
+        if (debounceAnnotation != null && throttleAnnotation != null)
+            logger.error(method, "You can't use both @Debounce and @Throttle on the same method.");
+        if (isUiThread && (debounceAnnotation != null || throttleAnnotation != null))
+            logger.error(method, "@Debounce and @Throttle can't be used on a @Ui method.");
+        if (isAsyncResult && (debounceAnnotation != null || throttleAnnotation != null))
+            logger.error(method, "@Debounce and @Throttle methods can't return an AsyncResult, as they drop calls.");
+        String rateControlField = null;
+        if (debounceAnnotation != null || throttleAnnotation != null) {
+            boolean isDebounced = debounceAnnotation != null;
+            Integer delay = getAnnotationValue(isDebounced ? debounceAnnotation : throttleAnnotation, "value");
+            if (delay < 0)
+                logger.error(method, isDebounced ? debounceAnnotation : throttleAnnotation, "value", "The delay can't be negative.");
+            String type = isDebounced ? "Debouncer" : "Throttler";
+            rateControlField = "__" + type.toLowerCase() + "_" + method.getSimpleName() + "_" +
+                    method.getEnclosingElement().getEnclosedElements().indexOf(method);
+            classWriter.emitEmptyLine()
+                    .emitField(type, rateControlField, of(PRIVATE, FINAL), "new " + type + "(" + delay + ")");
+        }
+
+        // Retried methods share a retry policy
+        AnnotationMirror retryAnnotation = getAnnotation(method, Retry.class);
+        if (retryAnnotation != null && isUiThread)
+            logger.error(method, retryAnnotation, "@Retry can't be used on a @Ui method.");
+        String retryField = null;
+        if (retryAnnotation != null) {
+            Integer max = getAnnotationValueOrDefault(retryAnnotation, "max");
+            Integer initialDelay = getAnnotationValueOrDefault(retryAnnotation, "initialDelayMs");
+            Double multiplier = getAnnotationValueOrDefault(retryAnnotation, "multiplier");
+            Double jitter = getAnnotationValueOrDefault(retryAnnotation, "jitter");
+            List<? extends AnnotationValue> on = getAnnotationValueOrDefault(retryAnnotation, "on");
+            if (max < 1)
+                logger.error(method, retryAnnotation, "max", "The maximum number of retries should be at least 1.");
+            if (initialDelay < 0)
+                logger.error(method, retryAnnotation, "initialDelayMs", "The delay can't be negative.");
+            if (multiplier < 1)
+                logger.error(method, retryAnnotation, "multiplier", "The multiplier should be at least 1.");
+            if (jitter < 0 || jitter > 1)
+                logger.error(method, retryAnnotation, "jitter", "The jitter should be between 0 and 1.");
+            if (on.isEmpty())
+                logger.error(method, retryAnnotation, "on", "At least one exception type is needed.");
+            StringBuilder policy = new StringBuilder("new RetryPolicy(")
+                    .append(max).append(", ").append(initialDelay).append(", ")
+                    .append(multiplier).append(", ").append(jitter);
+            for (AnnotationValue errorClass : on)
+                policy.append(", ").append(errorClass.getValue()).append(".class");
+            policy.append(")");
+            retryField = "__retry_" + method.getSimpleName() + "_" +
+                    method.getEnclosingElement().getEnclosedElements().indexOf(method);
+            classWriter.emitEmptyLine()
+                    .emitField("RetryPolicy", retryField, of(PRIVATE, STATIC, FINAL), policy.toString());
+        }
+
+        // Define serial, null means the method runs concurrently with others
+        AnnotationMirror annotation = getAnnotation(method, Serial.class);
+        boolean isParallel = isAnnotatedWith(method, Parallel.class);
+        if (annotation != null && isParallel)
+            logger.error(method, "You can't use both @Serial and @Parallel on the same method.");
+        String serial;
+        Integer concurrency = null;
+        if (annotation != null) {
+            String value = getAnnotationValue(annotation, "value");
+            serial = value == null ? Serial.DEFAULT : value;
+            concurrency = getAnnotationValue(annotation, "concurrency");
+            if (concurrency != null && concurrency < 1)
+                logger.error(method, annotation, "concurrency", "The concurrency of a serial should be at least 1.");
+            Integer declared = concurrency == null ? null : serialConcurrencies.get(serial);
+            if (declared != null && !declared.equals(concurrency))
+                logger.error(method, annotation, "concurrency", "Methods using the serial \"" + serial +
+                        "\" declare different concurrencies: " + declared + " and " + concurrency + ".");
+            else if (concurrency != null) serialConcurrencies.put(serial, concurrency);
+        } else if (!isParallel && isSerialMode(method.getEnclosingElement())) {
+            serial = Serial.DEFAULT;
+        } else {
+            serial = null;
+        }
+
+        // Rate limit the method, or else apply the one of the service
+        AnnotationMirror rateLimitAnnotation = getAnnotation(method, RateLimit.class);
+        String rateLimiterField = null;
+        if (rateLimitAnnotation != null) {
+            if (isUiThread || rateControlField != null)
+                logger.error(method, rateLimitAnnotation, "@RateLimit can't be used with @Ui, @Debounce or @Throttle.");
+            rateLimiterField = "__rateLimiter_" + method.getSimpleName() + "_" +
+                    method.getEnclosingElement().getEnclosedElements().indexOf(method);
+            classWriter.emitEmptyLine()
+                    .emitField("RateLimiter", rateLimiterField, of(PRIVATE, STATIC, FINAL),
+                            createRateLimiter(method, rateLimitAnnotation,
+                                    ((TypeElement) method.getEnclosingElement()).getQualifiedName() + "#" + method));
+        } else if (!isUiThread && rateControlField == null) {
+            rateLimitAnnotation = getAnnotation(method.getEnclosingElement(), RateLimit.class);
+            if (rateLimitAnnotation != null) rateLimiterField = "__rateLimiter";
+        }
+        TypeMirror rejectedClass = rateLimitAnnotation == null ? null : (TypeMirror) getAnnotationValue(rateLimitAnnotation, "send");
+
+        // Bound the calls of the method on its serial, or else the calls of the service
+        AnnotationMirror capacityAnnotation = getAnnotation(method, Capacity.class);
+        String boundField = null;
+        if (capacityAnnotation != null) {
+            if (isUiThread || serial == null)
+                logger.error(method, capacityAnnotation, "@Capacity on a method bounds its serial, it can't be used on a parallel or @Ui method.");
+            boundField = "__bound_" + method.getSimpleName() + "_" +
+                    method.getEnclosingElement().getEnclosedElements().indexOf(method);
+            classWriter.emitEmptyLine()
+                    .emitField("TaskBound", boundField, of(PRIVATE, STATIC, FINAL),
+                            createTaskBound(method, capacityAnnotation, "serial:" + serial));
+        } else if (!isUiThread) {
+            capacityAnnotation = getAnnotation(method.getEnclosingElement(), Capacity.class);
+            if (capacityAnnotation != null) boundField = "__bound";
+        }
+        TypeMirror overflowClass = null;
+        if (capacityAnnotation != null) {
+            VariableElement overflow = getAnnotationValueOrDefault(capacityAnnotation, "overflow");
+            if (Capacity.Overflow.REJECT.toString().equals(overflow.toString()))
+                overflowClass = getAnnotationValue(capacityAnnotation, "send");
+        }
+
         // Start the mimic method
         classWriter.emitEmptyLine()
                 .beginMethod(
@@ -278,9 +562,26 @@ public class AsyncServiceAP extends AbstractProcessor {
         // Check the cache in a background thread
         classWriter.emitField("String", "callId", of(FINAL), parseCacheKeyValue(cacheValueFromMethodSignatureToParse));
 
-        // Define serial
-        AnnotationMirror annotation = getAnnotation(method, Serial.class);
-        String serial = annotation == null ? "__SERIAL_DEFAULT" : (String) getAnnotationValue(annotation, "value");
+        // Define priority, from the method or else from the service
+        annotation = getAnnotation(method, Priority.class);
+        if (annotation == null) annotation = getAnnotation(method.getEnclosingElement(), Priority.class);
+        Integer priority = annotation == null ? null : (Integer) getAnnotationValue(annotation, "value");
+
+        // Define the thread pool, from the method or else from the service
+        String pool = getPool(method);
+        if (pool != null && isUiThread)
+            logger.error(method, "@Io and @Compute can't be used on a @Ui method.");
+        if (pool == null && !isUiThread) pool = getPool(method.getEnclosingElement());
+
+        // Define whether identical calls should share the call in flight
+        annotation = getAnnotation(method, Coalesce.class);
+        if (annotation != null && isUiThread)
+            logger.error(method, annotation, "@Coalesce can't be used on a @Ui method.");
+        if (annotation == null && !isUiThread) annotation = getAnnotation(method.getEnclosingElement(), Coalesce.class);
+        Boolean coalesceValue = annotation == null ? null : (Boolean) getAnnotationValue(annotation, "value");
+        boolean isCoalesced = annotation != null && (coalesceValue == null || coalesceValue);
+        if (isCoalesced && isAsyncResult)
+            logger.error(method, annotation, "@Coalesce methods can't return an AsyncResult.");
 
         // Define id
         annotation = getAnnotation(method, Id.class);
@@ -302,6 +603,51 @@ public class AsyncServiceAP extends AbstractProcessor {
                 logger.error(method, nullAnnotation, "value", "The null message type must have a public no-arg constructor.");
         }
 
+        // Define timeout management
+        AnnotationMirror timeoutAnnotation = getAnnotation(method, Timeout.class);
+        boolean hasTimeout = timeoutAnnotation != null;
+        if (hasTimeout && isUiThread)
+            logger.error(method, timeoutAnnotation, "@Timeout can't be used on a @Ui method.");
+        Integer timeout = hasTimeout ? (Integer) getAnnotationValue(timeoutAnnotation, "value") : null;
+        if (hasTimeout && timeout <= 0)
+            logger.error(method, timeoutAnnotation, "value", "The timeout should be strictly positive.");
+        TypeMirror timeoutClass = hasTimeout ? (TypeMirror) getAnnotationValue(timeoutAnnotation, "send") : null;
+        if (timeoutClass != null) {
+            TypeElement timeoutTypeElement = processingEnv.getElementUtils().getTypeElement(timeoutClass.toString());
+            if (isAbstract(timeoutTypeElement))
+                logger.error(method, timeoutAnnotation, "send", "The timeout message type should not be abstract.");
+            if (!hasPublicConstructor(timeoutTypeElement))
+                logger.error(method, timeoutAnnotation, "send", "The timeout message type must have a public no-arg constructor.");
+        }
+
+        // Batched calls are collected, then run all at once by the batcher
+        AnnotationMirror batchAnnotation = getAnnotation(method, Batch.class);
+        if (batchAnnotation != null) {
+            if (isUiThread || isCached || isCoalesced || id != null || rateControlField != null
+                    || retryField != null || hasTimeout || isAsyncResult)
+                logger.error(method, batchAnnotation, "@Batch can't be used with @Ui, @CacheThenCall, @Coalesce, @Id, @Debounce, @Throttle, @Retry, @Timeout or an AsyncResult.");
+            if (method.getParameters().size() != 1) {
+                logger.error(method, batchAnnotation, "@Batch annotated methods should have exactly one parameter.");
+                return;
+            }
+            String batcherField = "__batcher_" + method.getSimpleName() + "_" +
+                    method.getEnclosingElement().getEnclosedElements().indexOf(method);
+            classWriter.emitStatement("%s.add(%s, callId, emitter.get())",
+                    batcherField, method.getParameters().get(0).getSimpleName());
+            if (hasResult) classWriter.emitStatement("return null");
+            classWriter.endMethod();
+
+            String taskSerial = serial == null ? "null" : "\"" + serial + "\"";
+            StringBuilder taskSuffix = new StringBuilder();
+            if (concurrency != null) taskSuffix.append(".concurrency(").append(concurrency).append(")");
+            if (priority != null) taskSuffix.append(".priority(").append(priority).append(")");
+            if (rateLimiterField != null) taskSuffix.append(".delay(").append(rateLimiterField).append(".reserve())");
+            if (pool != null) taskSuffix.append(".pool(BackgroundExecutor.Pool.").append(pool).append(")");
+            createBatcher(classWriter, method, batchAnnotation, batcherField, newElementName,
+                    taskSerial, taskSuffix.toString(), isNullManaged ? nullClass : null);
+            return;
+        }
+
         if (isCached) {
             classWriter.emitField("String", "cacheKey", of(FINAL), parseCacheKeyValue(annotationCacheToParse));
             StringWriter buffer = new StringWriter();
@@ -313,55 +659,114 @@ public class AsyncServiceAP extends AbstractProcessor {
                     .emitStatement("%s cache = AsyncServiceCache.get(cacheKey, %s.class)", method.getReturnType(), method.getReturnType())
                     .emitStatement("if (cache == null) return")
                     .emitStatement("Message message = new Message(cache)")
-                    .emitStatement("message.cached().setEmitter(emitter)")
+                    .emitStatement("message.cached().setEmitter(emitter.get())")
                     .emitStatement("AsyncService.dispatch(message)")
                     .endMethod().endType();
             classWriter.emitStatement("BackgroundExecutor.execute(%s, callId, \"%s\")", buffer.toString(), "__SERIAL_CHECK_CACHE");
         }
 
-        String threadingPrefix = isUiThread ? "__handler.post(" : "BackgroundExecutor.execute(\n";
-        String threadingSuffix = isUiThread ? ")" : ", %s, \"%s\")";
+        String taskId = id == null ? "callId" : parseCacheKeyValue(id);
+        String taskSerial = serial == null ? "null" : "\"" + serial + "\"";
+        String threadingPrefix = isUiThread ? "__handler.post(" :
+                rateControlField != null ? rateControlField + ".execute(" : "BackgroundExecutor.execute(";
+        StringBuilder threadingSuffix = new StringBuilder();
+        if (!isUiThread && concurrency != null) threadingSuffix.append(".concurrency(").append(concurrency).append(")");
+        if (!isUiThread && priority != null) threadingSuffix.append(".priority(").append(priority).append(")");
+        if (hasTimeout) threadingSuffix.append(".timeout(").append(timeout).append(")");
+        if (rateLimiterField != null) threadingSuffix.append(".delay(__wait)");
+        if (boundField != null) threadingSuffix.append(".bound(").append(boundField).append(").coalesceKey(callId)");
+        if (pool != null) threadingSuffix.append(".pool(BackgroundExecutor.Pool.").append(pool).append(")");
+        // A coalesced call is shared by several emitters, don't cancel it when one goes away
+        if (!isUiThread && !isCoalesced) threadingSuffix.append(".emitter(emitter.get())");
+        threadingSuffix.append(")");
+
+        // The handle given to the caller, completed by the task
+        if (isAsyncResult) {
+            classWriter.emitField("AsyncResult<" + resultType + ">", "__result", of(FINAL), "new AsyncResult<" + resultType + ">()");
+            threadingPrefix = "BackgroundExecutor.Task __task = ";
+            threadingSuffix.setLength(threadingSuffix.length() - 1);
+        }
+
+        // If an identical call is already in flight, it will send its result to the emitter
+        if (isCoalesced) {
+            classWriter.emitField("InFlightCalls.Call", "__call", of(FINAL), "InFlightCalls.join(callId, emitter.get())")
+                    .emitStatement(hasResult ? "if (__call == null) return null" : "if (__call == null) return");
+        }
+
+        // Calls over the rate limit wait on the timer, or are rejected if they would wait too long
+        if (rateLimiterField != null) {
+            classWriter.emitField("int", "__wait", of(FINAL), rateLimiterField + ".acquire()")
+                    .beginControlFlow("if (__wait < 0)");
+            if (rejectedClass != null) {
+                classWriter.emitStatement("Message __message = new Message(new %s())", rejectedClass);
+                emitDispatch(classWriter, "__message", isCoalesced);
+            } else if (isCoalesced) {
+                classWriter.emitStatement("__call.close()");
+            }
+            if (isAsyncResult) classWriter.emitStatement("__result.cancel(false)");
+            classWriter.emitStatement(isAsyncResult ? "return __result" : hasResult ? "return null" : "return")
+                    .endControlFlow();
+        }
 
-        // TODO If a similar task was already running/scheduled on the same serial, only check the cache.
         // Delegate the call to the user method in a background thread
         String runnableCode;
         StringWriter buffer = new StringWriter();
         JavaWriter inner = new JavaWriter(buffer);
         inner.emitPackage("");
-        inner.beginType("Runnable()", "new");
-        inner.emitAnnotation("Override");
-        inner.beginMethod("void", "run", of(PUBLIC));
+        if (isUiThread) {
+            inner.beginType("Runnable()", "new");
+            inner.emitAnnotation("Override");
+            inner.beginMethod("void", "run", of(PUBLIC));
+        } else {
+            inner.beginType("BackgroundExecutor.Task(" + taskId + ", 0, " + taskSerial + ")", "new");
+            if (retryField != null) inner.emitField("int", "__retries", of(PRIVATE)).emitEmptyLine();
+            inner.emitAnnotation("Override");
+            inner.beginMethod("void", "execute", of(PUBLIC));
+        }
 
         beginErrorManagement(method, inner);
 
-        if (hasResult) {
+        if (isAsyncResult) {
+            // Wait for the value held by the result of the method
+            inner.emitStatement("AsyncResult<%s> __async = %s.super.%s(%s)",
+                    resultType,
+                    newElementName,
+                    method.getSimpleName(),
+                    formatParametersForCall(method))
+                    .emitStatement("%s __payload = __async == null ? null : __async.join()", resultType);
+        } else if (hasResult) {
             // If the method has result
             inner.emitStatement("%s __payload = %s.super.%s(%s)",
                     method.getReturnType(),
                     newElementName,
                     method.getSimpleName(),
-                    formatParametersForCall(method))
-                    .beginControlFlow("if (__payload == null)");
+                    formatParametersForCall(method));
+        }
+
+        if (hasResult) {
+            // The timeout message has been sent instead, or can't be anymore
+            if (hasTimeout) inner.emitStatement("if (!cancelTimeout()) return");
+            if (isAsyncResult) inner.emitStatement("__result.set(__payload)");
+
+            inner.beginControlFlow("if (__payload == null)");
 
             if (isNullManaged) {
-                inner.emitStatement("Message __message = new Message(new %s())", nullClass)
-                        .emitStatement("__message.setEmitter(emitter)")
-                        .emitStatement("AsyncService.dispatch(__message)")
-                        .emitStatement("return");
+                inner.emitStatement("Message __message = new Message(new %s())", nullClass);
+                emitDispatch(inner, "__message", isCoalesced);
+                inner.emitStatement("return");
             } else {
                 inner.emitStatement("return");
             }
 
             inner.endControlFlow()
                     .emitStatement("Message __message = new Message(__payload)")
-                    .emitStatement("__message.setQuery(callId)")
-                    .emitStatement("__message.setEmitter(emitter)");
+                    .emitStatement("__message.setQuery(callId)");
 
             // If it's cached, cache it
             if (isCached) inner.emitStatement("AsyncServiceCache.store(cacheKey, __payload)");
 
             // Then dispatch the message
-            inner.emitStatement("AsyncService.dispatch(__message)");
+            emitDispatch(inner, "__message", isCoalesced);
 
         } else {
             // If no cache, no result
@@ -370,29 +775,248 @@ public class AsyncServiceAP extends AbstractProcessor {
                     formatParametersForCall(method));
         }
 
-        endErrorManagement(method, inner);
+        endErrorManagement(method, inner, isCoalesced, hasTimeout, retryField, isAsyncResult);
+
+        // Make sure further identical calls run again, even if no message was sent
+        if (isCoalesced) {
+            inner.beginControlFlow("finally")
+                    .emitStatement(retryField == null ? "__call.close()" : "if (!isRetrying()) __call.close()")
+                    .endControlFlow();
+        }
 
         inner.endMethod();
+
+        if (isCoalesced || isAsyncResult) {
+            inner.emitEmptyLine()
+                    .emitAnnotation("Override")
+                    .beginMethod("void", "onCancelled", of(PROTECTED))
+                    .emitStatement(isCoalesced ? "__call.close()" : "__result.cancel(false)")
+                    .endMethod();
+        }
+
+        if (boundField != null && (overflowClass != null || isCoalesced || isAsyncResult)) {
+            inner.emitEmptyLine()
+                    .emitAnnotation("Override")
+                    .beginMethod("void", "onRejected", of(PROTECTED));
+            if (overflowClass != null) {
+                inner.emitStatement("Message __message = new Message(new %s())", overflowClass);
+                emitDispatch(inner, "__message", isCoalesced);
+            }
+            if (isCoalesced && overflowClass == null) inner.emitStatement("__call.close()");
+            if (isAsyncResult) inner.emitStatement("__result.cancel(false)");
+            inner.endMethod();
+        }
+
+        if (timeoutClass != null || (hasTimeout && isAsyncResult)) {
+            inner.emitEmptyLine()
+                    .emitAnnotation("Override")
+                    .beginMethod("void", "onTimeout", of(PROTECTED));
+            if (timeoutClass != null) {
+                inner.emitStatement("Message __message = new Message(new %s())", timeoutClass);
+                emitDispatch(inner, "__message", isCoalesced);
+            }
+            if (isAsyncResult) inner.emitStatement("__result.fail(new java.util.concurrent.TimeoutException())");
+            inner.endMethod();
+        }
+
         inner.endType();
         runnableCode = buffer.toString();
-        classWriter.emitStatement(threadingPrefix + runnableCode + threadingSuffix,
-                id == null ? "callId" : parseCacheKeyValue(id), serial);
-
-        if (hasResult) classWriter.emitStatement("return null");
+        classWriter.emitStatement(threadingPrefix + runnableCode + threadingSuffix);
+
+        if (isAsyncResult) {
+            classWriter.emitStatement("__result.setTask(__task)")
+                    .emitStatement("BackgroundExecutor.execute(__task)")
+                    .emitStatement("return __result");
+        } else if (hasResult) {
+            classWriter.emitStatement("return null");
+        }
         classWriter.endMethod();
 
     }
 
+    /**
+     * Emit the batcher field of a @Batch method, which calls the bulk
+     * method with the arguments of all calls, and sends each result
+     * to the emitter of the corresponding call.
+     */
+    private void createBatcher(JavaWriter classWriter, ExecutableElement method, AnnotationMirror batchAnnotation,
+                               String batcherField, String newElementName, String taskSerial, String taskSuffix,
+                               TypeMirror nullClass) throws IOException {
+        Types types = processingEnv.getTypeUtils();
+        TypeMirror listType = types.erasure(processingEnv.getElementUtils().getTypeElement(List.class.getCanonicalName()).asType());
+        VariableElement parameter = method.getParameters().get(0);
+        String argumentType = boxed(parameter.asType()).toString();
+        boolean hasResult = !isVoid(method);
+
+        // Find the bulk method
+        Integer window = getAnnotationValueOrDefault(batchAnnotation, "windowMs");
+        Integer maxSize = getAnnotationValueOrDefault(batchAnnotation, "maxSize");
+        String target = getAnnotationValue(batchAnnotation, "target");
+        if (window < 0)
+            logger.error(method, batchAnnotation, "windowMs", "The window can't be negative.");
+        if (maxSize < 1)
+            logger.error(method, batchAnnotation, "maxSize", "The maximum size should be at least 1.");
+        ExecutableElement targetMethod = null;
+        for (Element element : method.getEnclosingElement().getEnclosedElements()) {
+            if (isMethod(element) && element.getSimpleName().toString().equals(target)
+                    && ((ExecutableElement) element).getParameters().size() == 1)
+                targetMethod = (ExecutableElement) element;
+        }
+        if (targetMethod == null || targetMethod.getModifiers().contains(PRIVATE)) {
+            logger.error(method, batchAnnotation, "target", "No non-private method " + target + "(List) in this service.");
+            return;
+        }
+        if (!types.isAssignable(listType, types.erasure(targetMethod.getParameters().get(0).asType())))
+            logger.error(method, batchAnnotation, "target", "The parameter of " + target + "() should accept a List.");
+        if (hasResult && !types.isAssignable(types.erasure(targetMethod.getReturnType()), listType))
+            logger.error(method, batchAnnotation, "target", target + "() should return a List, with one result per argument.");
+
+        // The task which runs a batch
+        StringWriter buffer = new StringWriter();
+        JavaWriter inner = new JavaWriter(buffer);
+        inner.emitPackage("")
+                .beginType("BackgroundExecutor.Task(null, 0, " + taskSerial + ")", "new")
+                .emitAnnotation("Override")
+                .beginMethod("void", "execute", of(PUBLIC))
+                .beginControlFlow("try");
+        if (hasResult) {
+            String payloadType = boxed(method.getReturnType()).toString();
+            inner.emitStatement("List<?> __payloads = %s.super.%s(Batcher.arguments(__calls))", newElementName, target)
+                    .beginControlFlow("if (__payloads.size() != __calls.size())")
+                    .emitStatement("throw new IllegalStateException(\"%s() should return one result per argument\")", target)
+                    .endControlFlow()
+                    .beginControlFlow("for (int __i = 0; __i < __calls.size(); __i++)")
+                    .emitStatement("Batcher.Call<%s> __call = __calls.get(__i)", argumentType)
+                    .emitStatement("%s __payload = (%s) __payloads.get(__i)", payloadType, payloadType)
+                    .beginControlFlow("if (__payload == null)");
+            if (nullClass != null) {
+                inner.emitStatement("Message __message = new Message(new %s())", nullClass)
+                        .emitStatement("__message.setEmitter(__call.getEmitter())")
+                        .emitStatement("AsyncService.dispatch(__message)");
+            }
+            inner.emitStatement("continue")
+                    .endControlFlow()
+                    .emitStatement("Message __message = new Message(__payload)")
+                    .emitStatement("__message.setQuery(__call.getCallId())")
+                    .emitStatement("__message.setEmitter(__call.getEmitter())")
+                    .emitStatement("AsyncService.dispatch(__message)")
+                    .endControlFlow();
+        } else {
+            inner.emitStatement("%s.super.%s(Batcher.arguments(__calls))", newElementName, target);
+        }
+        inner.endControlFlow()
+                .beginControlFlow("catch (Throwable __e)")
+                .emitField("int", "code", of(FINAL), "__errorMapper.mapError(__e)")
+                .beginControlFlow("if (code == -1)")
+                .emitSingleLineComment("Ignore")
+                .endControlFlow();
+
+        // Each caller receives the error message, built with its own argument
+        for (ErrorCase errorCase : findErrorCases(method)) {
+            inner.beginControlFlow("else if (code == %s)", errorCase.code)
+                    .beginControlFlow("for (Batcher.Call<%s> __call : __calls)", argumentType)
+                    .emitField(parameter.asType().toString(), parameter.getSimpleName().toString(), of(FINAL), "__call.getArgument()")
+                    .emitStatement("Message __errorMessage = new Message(new %s(%s))",
+                            errorCase.className.toString(),
+                            constructErrorMessageParams(errorCase.className, method, "__e"))
+                    .emitStatement("__errorMessage.setEmitter(__call.getEmitter())")
+                    .emitStatement("AsyncService.dispatch(__errorMessage)")
+                    .endControlFlow()
+                    .emitStatement("return")
+                    .endControlFlow();
+        }
+
+        inner.emitStatement("Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), __e)")
+                .endControlFlow()
+                .endMethod()
+                .endType();
+        String taskCode = buffer.toString();
+
+        // The batcher, which submits the task
+        buffer = new StringWriter();
+        inner = new JavaWriter(buffer);
+        inner.emitPackage("")
+                .beginType("Batcher<" + argumentType + ">(" + window + ", " + maxSize + ")", "new")
+                .emitAnnotation("Override")
+                .beginMethod("void", "flush", of(PROTECTED), "final List<Batcher.Call<" + argumentType + ">>", "__calls")
+                .emitStatement("BackgroundExecutor.execute(%s%s)", taskCode, taskSuffix)
+                .endMethod()
+                .endType();
+        classWriter.emitEmptyLine()
+                .emitField("Batcher<" + argumentType + ">", batcherField, of(PRIVATE, FINAL), buffer.toString());
+    }
+
+    private TypeMirror boxed(TypeMirror type) {
+        if (!type.getKind().isPrimitive()) return type;
+        return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).asType();
+    }
+
     private void beginErrorManagement(ExecutableElement method, JavaWriter inner) throws IOException {
         inner.beginControlFlow("try");
     }
 
-    private void endErrorManagement(ExecutableElement method, JavaWriter inner) throws IOException {
+    /** Send the message to the emitter, or to all emitters of the call if coalesced. */
+    private void emitDispatch(JavaWriter writer, String messageName, boolean isCoalesced) throws IOException {
+        if (isCoalesced) {
+            writer.emitStatement("__call.dispatch(%s)", messageName);
+        } else {
+            writer.emitStatement("%s.setEmitter(emitter.get())", messageName)
+                    .emitStatement("AsyncService.dispatch(%s)", messageName);
+        }
+    }
+
+    private void endErrorManagement(ExecutableElement method, JavaWriter inner, boolean isCoalesced, boolean hasTimeout,
+                                    String retryField, boolean isAsyncResult) throws IOException {
 
         // End the try block
         inner.endControlFlow();
 
-        // Retrieve values of ErrorManagement annotation on the method.
+        List<ErrorCase> errorCases = findErrorCases(method);
+        // Begin the catch block
+        inner.beginControlFlow("catch (Throwable __e)");
+
+        // An error after a timeout is most likely caused by the interruption
+        if (hasTimeout) inner.emitStatement("if (!cancelTimeout()) return");
+
+        // Errors are only mapped once the retries are exhausted
+        if (retryField != null) {
+            inner.emitField("int", "__retryDelay", of(FINAL), retryField + ".delay(__e, __retries)")
+                    .beginControlFlow("if (__retryDelay >= 0)")
+                    .emitStatement("__retries++")
+                    .emitStatement("retry(__retryDelay)")
+                    .emitStatement("return")
+                    .endControlFlow();
+        }
+
+        // The caller gets the error from the AsyncResult
+        if (isAsyncResult) inner.emitStatement("__result.fail(__e)");
+
+        inner.emitField("int", "code", of(FINAL), "__errorMapper.mapError(__e)");
+
+        // Try to match the code with a message class to instantiate
+        inner.beginControlFlow("if (code == -1)")
+                .emitSingleLineComment("Ignore")
+                .endControlFlow();
+
+        for (ErrorCase errorCase : errorCases) {
+            inner.beginControlFlow("else if (code == %s)", errorCase.code)
+                    .emitStatement("Message __errorMessage = new Message(new %s(%s))",
+                            errorCase.className.toString(),
+                            constructErrorMessageParams(errorCase.className, method, "__e"));
+            emitDispatch(inner, "__errorMessage", isCoalesced);
+            inner.emitStatement("return")
+                    .endControlFlow();
+        }
+
+        // If no mapping could be found, delegate to global exception handler
+        if (!isAsyncResult)
+            inner.emitStatement("Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), __e)");
+        inner.endControlFlow();
+
+    }
+
+    /** Retrieve values of ErrorManagement annotation on the method, then on the class. */
+    private List<ErrorCase> findErrorCases(ExecutableElement method) {
         List<ErrorCase> errorCases = new ArrayList<ErrorCase>();
         AnnotationMirror errorManagementAnnotation = getAnnotation(method, ErrorManagement.class);
         if (errorManagementAnnotation != null) {
@@ -416,30 +1040,7 @@ public class AsyncServiceAP extends AbstractProcessor {
                 ));
             }
         }
-        // Begin the catch block
-        inner.beginControlFlow("catch (Throwable __e)")
-                .emitField("int", "code", of(FINAL), "__errorMapper.mapError(__e)");
-
-        // Try to match the code with a message class to instantiate
-        inner.beginControlFlow("if (code == -1)")
-                .emitSingleLineComment("Ignore")
-                .endControlFlow();
-
-        for (ErrorCase errorCase : errorCases) {
-            inner.beginControlFlow("else if (code == %s)", errorCase.code)
-                    .emitStatement("Message __errorMessage = new Message(new %s(%s))",
-                            errorCase.className.toString(),
-                            constructErrorMessageParams(errorCase.className, method, "__e"))
-                    .emitStatement("__errorMessage.setEmitter(emitter)")
-                    .emitStatement("AsyncService.dispatch(__errorMessage)")
-                    .emitStatement("return")
-                    .endControlFlow();
-        }
-
-        // If no mapping could be found, delegate to global exception handler
-        inner.emitStatement("Thread.getDefaultUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), __e)")
-                .endControlFlow();
-
+        return errorCases;
     }
 
     /**
@@ -16,10 +16,16 @@
 package com.joanzapata.android.asyncservice.processors;
 
 import com.joanzapata.android.asyncservice.api.Message;
+import com.joanzapata.android.asyncservice.api.annotation.Conflate;
 import com.joanzapata.android.asyncservice.api.annotation.InjectService;
 import com.joanzapata.android.asyncservice.api.annotation.OnMessage;
 import com.joanzapata.android.asyncservice.api.internal.AsyncService;
+import com.joanzapata.android.asyncservice.api.internal.BackgroundExecutor;
+import com.joanzapata.android.asyncservice.api.internal.Conflater;
 import com.joanzapata.android.asyncservice.api.internal.Injector;
+import com.joanzapata.android.asyncservice.api.internal.InjectorIndex;
+import com.joanzapata.android.asyncservice.api.internal.MainThreadQueue;
+import com.joanzapata.android.asyncservice.api.internal.ReceivedQueries;
 import com.joanzapata.android.asyncservice.processors.utils.Logger;
 import com.joanzapata.android.asyncservice.processors.utils.Utils;
 import com.squareup.javawriter.JavaWriter;
@@ -27,6 +33,7 @@ import com.squareup.javawriter.JavaWriter;
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
 import javax.annotation.processing.SupportedSourceVersion;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
@@ -42,13 +49,15 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static com.joanzapata.android.asyncservice.api.annotation.OnMessage.Priority;
 import static com.joanzapata.android.asyncservice.api.annotation.OnMessage.Priority.*;
 import static com.joanzapata.android.asyncservice.api.annotation.OnMessage.Sender.ALL;
+import static com.joanzapata.android.asyncservice.api.annotation.OnMessage.ThreadMode.*;
 import static com.joanzapata.android.asyncservice.processors.utils.Utils.*;
 import static java.util.Arrays.asList;
 import static java.util.EnumSet.of;
@@ -56,10 +65,20 @@ import static javax.lang.model.element.Modifier.*;
 
 @SupportedAnnotationTypes({"com.joanzapata.android.asyncservice.api.annotation.OnMessage", "com.joanzapata.android.asyncservice.api.annotation.InjectService"})
 @SupportedSourceVersion(SourceVersion.RELEASE_6)
+@SupportedOptions(InjectAP.INDEX_OPTION)
 public class InjectAP extends AbstractProcessor {
 
     public static final String INJECTOR_SUFFIX = "Injector";
+
+    /** Fully qualified name of the index of the module, if the default one clashes with another module. */
+    public static final String INDEX_OPTION = "asyncservice.injectorIndex";
+
+    public static final String INDEX_SIMPLE_NAME = "GeneratedInjectorIndex";
+
     private final List<String> managedTypes = new ArrayList<String>();
+    private final List<String> indexedTypes = new ArrayList<String>();
+    private final List<String> indexedPackages = new ArrayList<String>();
+    private boolean indexWritten;
     private Logger logger;
 
     @Override
@@ -75,10 +94,102 @@ public class InjectAP extends AbstractProcessor {
             }
         }
 
+        // Types found in later rounds, if any, are looked up by name at runtime
+        if (!indexWritten && !indexedTypes.isEmpty()) {
+            writeIndex();
+            indexWritten = true;
+        }
+
         return true;
 
     }
 
+    /** Create a new inner class for the Runnable which calls the user method on UI thread. */
+    private String createDelivery(ExecutableElement annotatedMethod, boolean hasArg, String eventType, String event) throws IOException {
+        StringWriter buffer = new StringWriter();
+        JavaWriter inner = new JavaWriter(buffer);
+        inner.emitPackage("")
+                .beginType("Runnable()", "new")
+                .emitAnnotation("Override")
+                .beginMethod("void", "run", of(PUBLIC));
+        emitCall(inner, annotatedMethod, hasArg, eventType, event);
+        inner.endMethod().endType();
+        return buffer.toString();
+    }
+
+    /** Emit the call to the user method, with the payload of the given event if it has an argument. */
+    private void emitCall(JavaWriter writer, ExecutableElement annotatedMethod, boolean hasArg, String eventType, String event) throws IOException {
+        if (hasArg) writer.emitStatement("target.%s((%s) %s.getPayload())",
+                annotatedMethod.getSimpleName(), eventType, event);
+        else if (!event.equals("event")) writer.emitStatement("%s", event)
+                .emitStatement("target.%s()", annotatedMethod.getSimpleName());
+        else writer.emitStatement("target.%s()",
+                annotatedMethod.getSimpleName());
+    }
+
+    /** Returns true if the type and its enclosing types are public. */
+    private static boolean isPublicType(Element element) {
+        for (; element instanceof TypeElement; element = element.getEnclosingElement())
+            if (!element.getModifiers().contains(PUBLIC)) return false;
+        return true;
+    }
+
+    /**
+     * The name of the index of this module: the processor option if given, else a class
+     * in the package all indexed types share, so that each module has its own.
+     */
+    private String indexName() {
+        String option = processingEnv.getOptions().get(INDEX_OPTION);
+        if (option != null && !option.trim().isEmpty()) return option.trim();
+
+        String packageName = indexedPackages.get(0);
+        for (String indexedPackage : indexedPackages)
+            packageName = commonPackage(packageName, indexedPackage);
+        if (packageName.isEmpty()) packageName = indexedPackages.get(0);
+        return packageName.isEmpty() ? INDEX_SIMPLE_NAME : packageName + "." + INDEX_SIMPLE_NAME;
+    }
+
+    /** Returns the longest package which contains both given packages, or "" if none. */
+    private static String commonPackage(String a, String b) {
+        while (!b.equals(a) && !b.startsWith(a + ".")) {
+            int dot = a.lastIndexOf('.');
+            if (dot == -1) return "";
+            a = a.substring(0, dot);
+        }
+        return a;
+    }
+
+    /**
+     * Generates the index of the injectors, so that they can be found without reflection
+     * once the index is given to AsyncService.addInjectorIndex().
+     */
+    private void writeIndex() {
+        String indexName = indexName();
+        int dot = indexName.lastIndexOf('.');
+        try {
+            JavaFileObject classFile = processingEnv.getFiler().createSourceFile(indexName);
+            logger.note("Writing " + classFile.toUri().getRawPath());
+            Writer out = classFile.openWriter();
+            JavaWriter writer = new JavaWriter(out);
+            writer.emitPackage(dot == -1 ? "" : indexName.substring(0, dot))
+                    .emitImports(Injector.class, InjectorIndex.class, Map.class)
+                    .emitEmptyLine()
+                    .beginType(indexName.substring(dot + 1), "class", of(PUBLIC, FINAL), null, "InjectorIndex")
+                    .emitEmptyLine()
+                    .emitAnnotation(Override.class)
+                    .beginMethod("void", "registerInjectors", of(PUBLIC), "Map<Class<?>, Injector<?>>", "injectors");
+            for (String indexedType : indexedTypes)
+                writer.emitStatement("injectors.put(%s.class, new %s())", indexedType, indexedType + INJECTOR_SUFFIX);
+            writer.endMethod()
+                    .emitEmptyLine()
+                    .endType();
+            out.flush();
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Error while creating the injector index", e);
+        }
+    }
+
     @SuppressWarnings({"unchecked", "ConstantConditions"})
     private void manageType(TypeElement enclosingElement, Logger logger) {
 
@@ -89,6 +200,12 @@ public class InjectAP extends AbstractProcessor {
         if (managedTypes.contains(qualifiedName)) return;
         managedTypes.add(qualifiedName);
 
+        // The index may be in another package, non public types are looked up by name at runtime
+        if (isPublicType(enclosingElement)) {
+            indexedTypes.add(qualifiedName);
+            indexedPackages.add(packageName);
+        }
+
         // Prepare the output file
         try {
             JavaFileObject classFile = processingEnv.getFiler().createSourceFile(qualifiedName + INJECTOR_SUFFIX);
@@ -101,27 +218,23 @@ public class InjectAP extends AbstractProcessor {
             // Initial imports
             writer.emitImports(
                     AsyncService.class,
+                    BackgroundExecutor.class,
+                    Conflater.class,
                     Injector.class,
+                    MainThreadQueue.class,
                     Message.class,
-                    Set.class,
-                    HashSet.class)
+                    ReceivedQueries.class)
                     .emitImports(
-                            "com.joanzapata.android.asyncservice.api.annotation.OnMessage.Priority",
-                            "android.os.Handler",
-                            "android.os.Looper")
+                            "com.joanzapata.android.asyncservice.api.annotation.OnMessage.Priority")
                     .emitStaticImports("com.joanzapata.android.asyncservice.api.annotation.OnMessage.Priority.*");
 
             // Generates "public final class XXXInjector extends Injector<XXX>"
             writer.emitEmptyLine()
                     .beginType(simpleName + INJECTOR_SUFFIX, "class", of(PUBLIC, FINAL), "Injector<" + simpleName + ">");
 
-            // Generate a handler to execute runnables on the UI Thread
-            writer.emitEmptyLine()
-                    .emitField("Handler", "__handler", of(PRIVATE, FINAL), "new Handler(Looper.getMainLooper())");
-
             // Keep trace of when a method has received data which is not from cache
             writer.emitEmptyLine()
-                    .emitField("Set<String>", "__receivedFinalResponses", of(PRIVATE, FINAL), "new HashSet<String>()");
+                    .emitField("ReceivedQueries", "__receivedFinalResponses", of(PRIVATE, FINAL), "new ReceivedQueries()");
 
             // Generates "protected void inject(XXX target) { ..."
             writer.emitEmptyLine()
@@ -139,17 +252,25 @@ public class InjectAP extends AbstractProcessor {
             // End of inject()
             writer.endMethod().emitEmptyLine();
 
+            // Generates "protected Injector<XXX> newInjector()", so that injectors are created without reflection
+            writer.emitAnnotation(Override.class)
+                    .beginMethod("Injector<" + simpleName + ">", "newInjector", of(PROTECTED))
+                    .emitStatement("return new %s()", simpleName + INJECTOR_SUFFIX)
+                    .endMethod().emitEmptyLine();
+
             // Generates "protected void dispatch(XXX target, Message event)"
             writer.emitAnnotation(Override.class)
                     .beginMethod("void", "dispatch", of(PROTECTED), "final " + simpleName, "target", "final " + Message.class.getSimpleName(), "event", Priority.class.getSimpleName(), "priority");
 
             // Once the user has received a "remote" result, make sure no cache is sent anymore
-            writer.emitField("boolean", "__hasBeenReceivedAlready", of(FINAL), "event.getQuery() != null && __receivedFinalResponses.contains(event.getQuery())")
+            writer.emitField("boolean", "__hasBeenReceivedAlready", of(FINAL), "__receivedFinalResponses.contains(event.getQuery())")
                     .emitStatement("if (event.isCached() && __hasBeenReceivedAlready) return")
                     .emitStatement("if (!__hasBeenReceivedAlready && !event.isCached() && priority == LAST) __receivedFinalResponses.add(event.getQuery())");
 
             // Here, dispatch events to methods
             List<Element> responseReceivers = findElementsAnnotatedWith(enclosingElement, OnMessage.class);
+            Set<String> messageTypes = new LinkedHashSet<String>();
+            List<String> conflaterFields = new ArrayList<String>();
             for (Element responseReceiver : responseReceivers) {
                 ExecutableElement annotatedMethod = (ExecutableElement) responseReceiver;
                 AnnotationMirror annotationMirror = getAnnotation(annotatedMethod, OnMessage.class);
@@ -183,6 +304,8 @@ public class InjectAP extends AbstractProcessor {
 
                 }
 
+                messageTypes.addAll(eventTypes);
+
                 // Define whether we should check emitter or not dependeing on the annotation value
                 VariableElement from = getAnnotationValue(annotationMirror, "from");
                 boolean checkEmitter = !ALL.toString().equals("" + from);
@@ -192,28 +315,45 @@ public class InjectAP extends AbstractProcessor {
                 Priority priority = !LAST.toString().equals("" + priorityValue) ? FIRST : LAST;
                 writer.beginControlFlow("if (priority == %s)", priority);
 
+                // Check the thread the method is called on
+                VariableElement threadValue = getAnnotationValue(annotationMirror, "thread");
+                String thread = threadValue == null ? MAIN.toString() : threadValue.toString();
+
                 // Write the code to call the user method
                 if (checkEmitter) writer.beginControlFlow("if (event.getEmitter() == getTarget())");
 
-                // Create a new inner class for the Runnable to run on UI thread
-                StringWriter buffer = new StringWriter();
-                JavaWriter inner = new JavaWriter(buffer);
-                inner.emitPackage("")
-                        .beginType("Runnable()", "new")
-                        .emitAnnotation("Override")
-                        .beginMethod("void", "run", of(PUBLIC));
-                if (hasArg) inner.emitStatement("target.%s((%s) event.getPayload())",
-                        annotatedMethod.getSimpleName(), eventTypes.get(0));
-                else inner.emitStatement("target.%s()",
-                        annotatedMethod.getSimpleName());
-                inner.endMethod().endType();
-
                 // For each type (can be multiple)
+                boolean isMethodConflated = getAnnotation(annotatedMethod, Conflate.class) != null;
+                if (isMethodConflated && !MAIN.toString().equals(thread))
+                    logger.error(annotatedMethod, "@Conflate can only be used on methods called on the MAIN thread.");
                 for (int i = 0; i < eventTypes.size(); i++) {
                     String eventType = eventTypes.get(i);
-                    writer.beginControlFlow("%sif (event.getPayload() instanceof %s)", i != 0 ? "else " : "", eventType)
-                            .emitStatement("__handler.post(%s)", buffer.toString())
-                            .endControlFlow();
+                    writer.beginControlFlow("%sif (event.getPayload() instanceof %s)", i != 0 ? "else " : "", eventType);
+
+                    TypeElement eventTypeElement = processingEnv.getElementUtils().getTypeElement(eventType);
+                    boolean isConflated = isMethodConflated ||
+                            (eventTypeElement != null && getAnnotation(eventTypeElement, Conflate.class) != null);
+                    if (POSTING.toString().equals(thread)) {
+                        // Call the method directly
+                        emitCall(writer, annotatedMethod, hasArg, eventTypes.get(0), "event");
+                    } else if (BACKGROUND.toString().equals(thread)) {
+                        // Call the method directly, unless on the main thread
+                        writer.emitField("Runnable", "__delivery", of(FINAL),
+                                createDelivery(annotatedMethod, hasArg, eventTypes.get(0), "event"))
+                                .emitStatement("if (MainThreadQueue.isMainThread()) BackgroundExecutor.execute(__delivery)")
+                                .emitStatement("else __delivery.run()");
+                    } else if (isConflated) {
+                        // Only the newest message is delivered, a delivery is posted for the first one
+                        String conflaterField = "__conflater_" + annotatedMethod.getSimpleName() + "_" +
+                                responseReceivers.indexOf(responseReceiver) + "_" + i;
+                        conflaterFields.add(conflaterField);
+                        writer.emitStatement("if (%s.offer(event)) MainThreadQueue.execute(%s)", conflaterField,
+                                createDelivery(annotatedMethod, hasArg, eventTypes.get(0), conflaterField + ".take()"));
+                    } else {
+                        writer.emitStatement("MainThreadQueue.execute(%s)",
+                                createDelivery(annotatedMethod, hasArg, eventTypes.get(0), "event"));
+                    }
+                    writer.endControlFlow();
                 }
 
                 if (checkEmitter) writer.endControlFlow();
@@ -223,6 +363,22 @@ public class InjectAP extends AbstractProcessor {
             // End of inject();
             writer.endMethod().emitEmptyLine();
 
+            // Newest messages waiting for the @Conflate methods
+            for (String conflaterField : conflaterFields)
+                writer.emitField("Conflater", conflaterField, of(PRIVATE, FINAL), "new Conflater()");
+            if (!conflaterFields.isEmpty()) writer.emitEmptyLine();
+
+            // List the message types, so that only the messages of these types are dispatched to this injector
+            StringBuilder messageTypesArray = new StringBuilder();
+            for (String messageType : messageTypes) {
+                if (messageTypesArray.length() > 0) messageTypesArray.append(", ");
+                messageTypesArray.append(messageType).append(".class");
+            }
+            writer.emitAnnotation(Override.class)
+                    .beginMethod("Class<?>[]", "getMessageTypes", of(PROTECTED))
+                    .emitStatement("return new Class<?>[]{%s}", messageTypesArray)
+                    .endMethod().emitEmptyLine();
+
             // End of file
             writer.endType();
             out.flush();
@@ -18,7 +18,6 @@ package com.joanzapata.android.asyncservice.processors.utils;
 import javax.annotation.processing.Messager;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.Element;
-import javax.lang.model.element.ExecutableElement;
 import javax.tools.Diagnostic;
 
 import static javax.tools.Diagnostic.Kind.*;
@@ -42,7 +41,7 @@ public class Logger {
         throw new IllegalArgumentException(message);
     }
 
-    public void error(ExecutableElement element, AnnotationMirror annotationMirror, String annotationValue, String message) {
+    public void error(Element element, AnnotationMirror annotationMirror, String annotationValue, String message) {
         messager.printMessage(ERROR, message, element, annotationMirror, Utils.getRawAnnotationValue(annotationMirror, annotationValue));
 
         // Just in case the build doesn't stop with the instruction above